@@ -0,0 +1,21 @@
+package org.abhineshjha.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Helpers shared by the benchmarks
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    static void deleteRecursively(File dir) throws IOException {
+        if (!dir.exists()) return;
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
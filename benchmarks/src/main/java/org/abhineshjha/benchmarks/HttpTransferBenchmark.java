@@ -0,0 +1,161 @@
+package org.abhineshjha.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.handler.ClusterProxy;
+import org.abhineshjha.handler.DownloadHandler;
+import org.abhineshjha.handler.RateLimits;
+import org.abhineshjha.handler.UploadHandler;
+import org.abhineshjha.service.BlobStore;
+import org.abhineshjha.service.ClusterRouter;
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.GzipVariants;
+import org.abhineshjha.service.HotFileCache;
+import org.abhineshjha.service.ShareJournal;
+import org.abhineshjha.service.StorageManager;
+import org.abhineshjha.utils.ServerConfig;
+import org.abhineshjha.utils.TimerWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpServer;
+
+// End to end over loopback: the real UploadHandler and DownloadHandler
+// behind a JDK HttpServer on virtual threads, driven by java.net.http.
+// Rate limits are off so the numbers show the handlers, not the limiter.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class HttpTransferBenchmark {
+    @Param({"1024", "1048576", "67108864", "524288000"})
+    public int size;
+
+    private File dir;
+    private TimerWheel timerWheel;
+    private BlobStore blobStore;
+    private FileSharer fileSharer;
+    private GzipVariants gzipVariants;
+    private HttpServer server;
+    private ExecutorService executor;
+    private HttpClient client;
+    private String baseUrl;
+    private File uploadBody;
+    private String storedDigest;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("http-bench").toFile();
+        ServerConfig config = ServerConfig.builder().port(0).transferPort(0).noRateLimits().build();
+        timerWheel = new TimerWheel("bench-wheel", 1, TimeUnit.SECONDS, 64);
+        blobStore = new BlobStore(dir.getPath());
+        fileSharer = new FileSharer(blobStore, new ShareJournal(dir.getPath()), timerWheel, 0);
+        fileSharer.restore(dir.getPath());
+        gzipVariants = new GzipVariants(blobStore);
+        RateLimits rateLimits = new RateLimits(config, timerWheel);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // No hot cache: downloads measure the disk path
+        HotFileCache hotFileCache = new HotFileCache(0, 0);
+        server.createContext("/upload", new UploadHandler(blobStore, fileSharer, rateLimits, gzipVariants, hotFileCache,
+                new StorageManager(blobStore, fileSharer, 0)));
+        server.createContext("/download", new DownloadHandler(fileSharer, rateLimits, gzipVariants, hotFileCache,
+                new ClusterProxy(new ClusterRouter(), "")));
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        timerWheel.start();
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+        // The multipart body is built on disk once, so large sizes stream
+        // from the file instead of sitting in the heap. A .zip name passes
+        // the upload whitelist and skips the gzip variant work.
+        uploadBody = new File(dir, "upload-body");
+        Random random = new Random(42);
+        byte[] chunk = new byte[1024 * 1024];
+        BlobStore.BlobWriter blob = blobStore.newWriter();
+        try (OutputStream out = new FileOutputStream(uploadBody); blob) {
+            out.write(("--" + MultipartBenchmark.BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.zip\"\r\n"
+                    + "Content-Type: application/zip\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                int length = (int) Math.min(chunk.length, size - written);
+                out.write(chunk, 0, length);
+                blob.write(chunk, 0, length);
+            }
+            out.write(("\r\n--" + MultipartBenchmark.BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        // The same content as a stored blob, for downloads
+        storedDigest = blobStore.commit(blob);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop(0);
+        executor.shutdown();
+        timerWheel.stop();
+        gzipVariants.close();
+        fileSharer.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int upload() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + MultipartBenchmark.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofFile(uploadBody.toPath()))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Upload failed: " + response.statusCode() + " " + response.body());
+        }
+        // Drop the share again so the server's state stays flat across iterations
+        String body = response.body();
+        int port = Integer.parseInt(body.substring(body.indexOf(':') + 1, body.indexOf(',')).trim());
+        fileSharer.recordDownload(port);
+        return port;
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException {
+        // Every download consumes its share, so each one gets a fresh share
+        // on the stored blob; that costs microseconds next to the transfer
+        blobStore.retain(storedDigest);
+        int port = fileSharer.offerBlob(storedDigest, "bench.zip");
+        HttpRequest request = HttpRequest.newBuilder(
+                URI.create(baseUrl + "/download/" + port + "?token=" + fileSharer.getToken(port))).build();
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Download failed: " + response.statusCode());
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+}
@@ -0,0 +1,77 @@
+package org.abhineshjha.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram for the load generator: 32 sub-buckets per
+// power of two keep every value within about 3%, fine enough for p999,
+// which the coarse Prometheus buckets of the server are not. Recording is
+// one atomic increment.
+final class LatencyRecorder {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(1, nanos)));
+    }
+
+    // Counts since the last call, for interval reports
+    long[] drain() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+        }
+        return snapshot;
+    }
+
+    long[] snapshot() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    static long count(long[] counts) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // Upper bound of the bucket holding the given quantile, or 0 if empty
+    static long percentile(long[] counts, double quantile) {
+        long total = count(counts);
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return lowerBound(i + 1) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    static int index(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent < SUB_BITS) {
+            return (int) value; // Small values are exact
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        int bucket = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (bucket == 0) {
+            return sub;
+        }
+        int exponent = bucket + SUB_BITS - 1;
+        return (1L << exponent) | ((long) sub << (exponent - SUB_BITS));
+    }
+}
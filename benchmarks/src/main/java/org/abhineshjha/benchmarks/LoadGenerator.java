@@ -0,0 +1,463 @@
+package org.abhineshjha.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.abhineshjha.controller.FileController;
+import org.abhineshjha.utils.ServerConfig;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+// Load and soak test: starts a FileController in this JVM on a loopback
+// port and keeps a fixed number of clients busy with multipart uploads of
+// mixed sizes and types and token downloads of what was uploaded. Every
+// interval it prints throughput, p50/p99/p999 latency and errors per
+// operation, plus heap, RSS, open file descriptors and threads, so leaks
+// that only show up after hours of traffic can be reproduced locally.
+//
+//   java -cp benchmarks/target/benchmarks.jar org.abhineshjha.benchmarks.LoadGenerator \
+//       --duration=2h --clients=32 --sizes=4KB,256KB,4MB --download-ratio=0.5
+//
+// Rate limits are off unless --rate-limits is given, in which case the
+// usual environment variables apply. Server output is discarded unless
+// --server-log names a file.
+public class LoadGenerator {
+    private static final Pattern TOKEN = Pattern.compile("\"token\":\\s*\"([^\"]+)\"");
+    private static final Pattern ACTIVE_SHARES = Pattern.compile("(?m)^p2p_active_shares (\\d+)$");
+    private static final String BOUNDARY = "----LoadGeneratorBoundary";
+    private static final String TEXT_PATTERN = "id,name,amount,comment\r\n1,alice,42.00,\"nothing to see\"\r\n";
+
+    // File types the server accepts: name extension, content type, compressible
+    private static final String[][] TYPES = {
+        {".txt", "text/plain", "text"},
+        {".csv", "text/csv", "text"},
+        {".pdf", "application/pdf", "binary"},
+        {".png", "image/png", "binary"},
+        {".zip", "application/zip", "binary"},
+    };
+
+    private final Options options;
+    private final HttpClient client;
+    private final String baseUrl;
+    private final byte[] textPayload;
+    private final byte[] binaryPayload;
+    private final ConcurrentLinkedQueue<String> tokens = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingTokens = new AtomicLong();
+    private final AtomicLong uploadSequence = new AtomicLong();
+    private final Operation uploads = new Operation("upload");
+    private final Operation downloads = new Operation("download");
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final PrintStream report;
+
+    // Latencies, bytes and the count of one kind of request
+    private static class Operation {
+        final String name;
+        final LatencyRecorder interval = new LatencyRecorder();
+        final LatencyRecorder total = new LatencyRecorder();
+        final LongAdder bytes = new LongAdder();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos, long byteCount) {
+            interval.record(nanos);
+            total.record(nanos);
+            bytes.add(byteCount);
+        }
+    }
+
+    // Command line settings, given as --name=value
+    static class Options {
+        Duration duration = Duration.ofMinutes(1);
+        Duration interval = Duration.ofSeconds(10);
+        int clients = 16;
+        long[] sizes = {4 * 1024, 256 * 1024, 4 * 1024 * 1024};
+        double downloadRatio = 0.5;       // Share of operations that try a download
+        long maxPending = 10_000;         // Uploaded but undownloaded shares to keep tokens for
+        ServerConfig.ExecutionMode mode = ServerConfig.ExecutionMode.VIRTUAL;
+        int threads = 10;
+        boolean rateLimits;
+        String serverLog;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                String name = eq == -1 ? arg : arg.substring(0, eq);
+                String value = eq == -1 ? "" : arg.substring(eq + 1);
+                switch (name) {
+                    case "--duration" -> options.duration = parseDuration(value);
+                    case "--interval" -> options.interval = parseDuration(value);
+                    case "--clients" -> options.clients = Integer.parseInt(value);
+                    case "--sizes" -> {
+                        String[] parts = value.split(",");
+                        options.sizes = new long[parts.length];
+                        for (int i = 0; i < parts.length; i++) {
+                            options.sizes[i] = parseSize(parts[i]);
+                        }
+                    }
+                    case "--download-ratio" -> options.downloadRatio = Double.parseDouble(value);
+                    case "--max-pending" -> options.maxPending = Long.parseLong(value);
+                    case "--mode" -> options.mode = ServerConfig.ExecutionMode.valueOf(value.toUpperCase());
+                    case "--threads" -> options.threads = Integer.parseInt(value);
+                    case "--rate-limits" -> options.rateLimits = true;
+                    case "--server-log" -> options.serverLog = value;
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+
+        static Duration parseDuration(String value) {
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            return switch (value.charAt(value.length() - 1)) {
+                case 's' -> Duration.ofSeconds(amount);
+                case 'm' -> Duration.ofMinutes(amount);
+                case 'h' -> Duration.ofHours(amount);
+                default -> throw new IllegalArgumentException("Bad duration " + value + ", use e.g. 30s, 10m, 2h");
+            };
+        }
+
+        static long parseSize(String value) {
+            String upper = value.trim().toUpperCase();
+            long unit = 1;
+            if (upper.endsWith("KB")) {
+                unit = 1024;
+            } else if (upper.endsWith("MB")) {
+                unit = 1024 * 1024;
+            } else if (upper.endsWith("GB")) {
+                unit = 1024L * 1024 * 1024;
+            }
+            String digits = unit == 1 ? upper.replace("B", "") : upper.substring(0, upper.length() - 2);
+            return Long.parseLong(digits) * unit;
+        }
+    }
+
+    LoadGenerator(Options options, int port, PrintStream report) {
+        this.options = options;
+        this.report = report;
+        this.baseUrl = "http://127.0.0.1:" + port;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        long largest = 0;
+        for (long size : options.sizes) {
+            largest = Math.max(largest, size);
+        }
+        if (largest > Integer.MAX_VALUE - 64) {
+            throw new IllegalArgumentException("Sizes above 2GB are not supported");
+        }
+        this.textPayload = new byte[(int) largest];
+        byte[] text = TEXT_PATTERN.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < textPayload.length; i++) {
+            textPayload[i] = text[i % text.length];
+        }
+        this.binaryPayload = new byte[(int) largest];
+        new Random(42).nextBytes(binaryPayload);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        PrintStream report = System.out;
+        OutputStream serverOutput = options.serverLog == null
+                ? OutputStream.nullOutputStream() : new FileOutputStream(options.serverLog);
+        PrintStream serverLog = new PrintStream(serverOutput, true);
+
+        // FileController keeps its files under java.io.tmpdir
+        Path workDir = Files.createTempDirectory("p2p-load");
+        System.setProperty("java.io.tmpdir", workDir.toString());
+        ServerConfig config = serverConfig(options);
+
+        System.setOut(serverLog);
+        System.setErr(serverLog);
+        FileController controller = new FileController(config);
+        controller.start();
+        try {
+            report.println("Load test against " + options.mode.name().toLowerCase() + " server on port "
+                    + controller.getPort() + ", files in " + workDir);
+            new LoadGenerator(options, controller.getPort(), report).run();
+        } finally {
+            controller.stop();
+            Benchmarks.deleteRecursively(workDir.toFile());
+            serverLog.close();
+        }
+        // The server's worker and selector threads are not all daemons
+        System.exit(0);
+    }
+
+    private static ServerConfig serverConfig(Options options) {
+        ServerConfig.Builder config = ServerConfig.builderFromEnv()
+                .port(0)
+                .transferPort(0)
+                .executionMode(options.mode)
+                .executorThreads(options.threads)
+                .clusterPeers("")
+                .clusterSelf(null);
+        if (!options.rateLimits) {
+            config.noRateLimits();
+        }
+        return config.build();
+    }
+
+    void run() throws InterruptedException {
+        Resources baseline = Resources.sample(true);
+        report.println("Baseline: " + baseline);
+        long start = System.nanoTime();
+        long deadline = start + options.duration.toNanos();
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < options.clients; i++) {
+            clients.add(Thread.ofPlatform().daemon().name("load-client-" + i).start(() -> {
+                while (System.nanoTime() < deadline) {
+                    runOnce();
+                }
+            }));
+        }
+
+        long intervalNanos = options.interval.toNanos();
+        long nextReport = start + intervalNanos;
+        while (System.nanoTime() < deadline) {
+            long sleep = Math.min(nextReport, deadline) - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+            if (System.nanoTime() >= nextReport) {
+                reportInterval(System.nanoTime() - start, intervalNanos);
+                nextReport += intervalNanos;
+            }
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        reportSummary(System.nanoTime() - start, baseline);
+    }
+
+    private void runOnce() {
+        boolean download = pendingTokens.get() >= options.maxPending
+                || ThreadLocalRandom.current().nextDouble() < options.downloadRatio;
+        String token = download ? tokens.poll() : null;
+        if (token != null) {
+            pendingTokens.decrementAndGet();
+            download(token);
+        } else {
+            upload();
+        }
+    }
+
+    private void upload() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int size = (int) options.sizes[random.nextInt(options.sizes.length)];
+        String[] type = TYPES[random.nextInt(TYPES.length)];
+        byte[] payload = type[2].equals("text") ? textPayload : binaryPayload;
+
+        // A unique first line keeps the server from deduplicating the blob
+        long sequence = uploadSequence.incrementAndGet();
+        byte[] unique = ("upload " + sequence + "\n").getBytes(StandardCharsets.US_ASCII);
+        int uniqueLength = Math.min(unique.length, size);
+        String head = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"load-" + sequence + type[0] + "\"\r\n"
+                + "Content-Type: " + type[1] + "\r\n\r\n";
+        String tail = "\r\n--" + BOUNDARY + "--\r\n";
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.concat(
+                        HttpRequest.BodyPublishers.ofByteArray(head.getBytes(StandardCharsets.US_ASCII)),
+                        HttpRequest.BodyPublishers.ofByteArray(unique, 0, uniqueLength),
+                        HttpRequest.BodyPublishers.ofByteArray(payload, 0, size - uniqueLength),
+                        HttpRequest.BodyPublishers.ofByteArray(tail.getBytes(StandardCharsets.US_ASCII))))
+                .build();
+
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                error("upload", String.valueOf(response.statusCode()));
+                return;
+            }
+            uploads.record(System.nanoTime() - start, size);
+            Matcher matcher = TOKEN.matcher(response.body());
+            if (matcher.find()) {
+                tokens.add(matcher.group(1));
+                pendingTokens.incrementAndGet();
+            } else {
+                error("upload", "no token");
+            }
+        } catch (IOException e) {
+            error("upload", "io");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void download(String token) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/download/1?token=" + token)).GET().build();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long bytes;
+            try (InputStream body = response.body()) {
+                bytes = body.transferTo(OutputStream.nullOutputStream());
+            }
+            if (response.statusCode() != 200) {
+                error("download", String.valueOf(response.statusCode()));
+                return;
+            }
+            downloads.record(System.nanoTime() - start, bytes);
+        } catch (IOException e) {
+            error("download", "io");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void error(String operation, String kind) {
+        errors.computeIfAbsent(operation + " " + kind, key -> new LongAdder()).increment();
+    }
+
+    private void reportInterval(long elapsedNanos, long intervalNanos) {
+        StringBuilder line = new StringBuilder(String.format("[%6ds]", TimeUnit.NANOSECONDS.toSeconds(elapsedNanos)));
+        for (Operation operation : List.of(uploads, downloads)) {
+            long[] counts = operation.interval.drain();
+            line.append(' ').append(operation.name).append(' ').append(rate(counts, intervalNanos))
+                    .append(' ').append(latencies(counts)).append(" |");
+        }
+        line.append(" errors ").append(errorCount())
+                .append(" | shares ").append(activeShares())
+                .append(" | ").append(Resources.sample(false));
+        report.println(line);
+    }
+
+    private void reportSummary(long elapsedNanos, Resources baseline) {
+        report.println();
+        report.println("Summary after " + TimeUnit.NANOSECONDS.toSeconds(elapsedNanos) + "s with "
+                + options.clients + " clients");
+        for (Operation operation : List.of(uploads, downloads)) {
+            long[] counts = operation.total.snapshot();
+            double mbPerSecond = operation.bytes.sum() / (elapsedNanos / 1e9) / (1024 * 1024);
+            report.println(String.format("  %-8s %8d ops  %s  %8.1f MB/s  %s", operation.name,
+                    LatencyRecorder.count(counts), rate(counts, elapsedNanos), mbPerSecond, latencies(counts)));
+        }
+        Map<String, Long> byKind = new TreeMap<>();
+        errors.forEach((kind, count) -> byKind.put(kind, count.sum()));
+        report.println("  errors   " + (byKind.isEmpty() ? "none" : byKind));
+        report.println("  shares   " + activeShares() + " still active");
+
+        Resources end = Resources.sample(true);
+        report.println("  start    " + baseline);
+        report.println("  end      " + end);
+        report.println(String.format("  growth   heap %+d MB, rss %+d MB, fds %+d, threads %+d",
+                (end.heapUsed - baseline.heapUsed) >> 20, (end.rss - baseline.rss) >> 20,
+                end.fds - baseline.fds, end.threads - baseline.threads));
+    }
+
+    private static String rate(long[] counts, long nanos) {
+        return String.format("%7.1f/s", LatencyRecorder.count(counts) / (nanos / 1e9));
+    }
+
+    private static String latencies(long[] counts) {
+        return "p50 " + millis(LatencyRecorder.percentile(counts, 0.5))
+                + " p99 " + millis(LatencyRecorder.percentile(counts, 0.99))
+                + " p999 " + millis(LatencyRecorder.percentile(counts, 0.999));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    private long errorCount() {
+        long total = 0;
+        for (LongAdder count : errors.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    // Read from the server's own metrics endpoint
+    private String activeShares() {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/metrics")).GET().build();
+            Matcher matcher = ACTIVE_SHARES.matcher(client.send(request, HttpResponse.BodyHandlers.ofString()).body());
+            return matcher.find() ? matcher.group(1) : "?";
+        } catch (IOException e) {
+            return "?";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "?";
+        }
+    }
+
+    // Process resources that grow when something leaks
+    private static class Resources {
+        final long heapUsed;
+        final long rss;
+        final long fds;
+        final int threads;
+
+        private Resources(long heapUsed, long rss, long fds, int threads) {
+            this.heapUsed = heapUsed;
+            this.rss = rss;
+            this.fds = fds;
+            this.threads = threads;
+        }
+
+        // With gc, heap use is measured after a collection, so start and end compare live data
+        static Resources sample(boolean gc) {
+            if (gc) {
+                System.gc();
+            }
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long fds = -1;
+            if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean unix) {
+                fds = unix.getOpenFileDescriptorCount();
+            }
+            return new Resources(heapUsed, rss(), fds, ManagementFactory.getThreadMXBean().getThreadCount());
+        }
+
+        // Resident set size from /proc, or -1 where there is none
+        private static long rss() {
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Not on Linux
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "heap " + (heapUsed >> 20) + "MB rss " + (rss < 0 ? "?" : (rss >> 20) + "MB")
+                    + " fds " + fds + " threads " + threads;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.abhineshjha.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.utils.MultiParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Boundary scanning of a one-file multipart body: the old buffered parse()
+// (findSequence over the whole array) against the streaming parser the
+// upload handler uses
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms3g", "-Xmx3g"})
+public class MultipartBenchmark {
+    static final String BOUNDARY = "----PeerLinkBenchmarkBoundary7MA4YWxkTrZu0gW";
+
+    @Param({"1024", "1048576", "67108864", "524288000"})
+    public int size;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        body = multipartBody(size);
+    }
+
+    @Benchmark
+    public MultiParser.ParseResult bufferedParse() {
+        return new MultiParser(body, BOUNDARY).parse();
+    }
+
+    @Benchmark
+    public long streamingParse() throws IOException {
+        MultiParser parser = new MultiParser(new ByteArrayInputStream(body), BOUNDARY);
+        parser.nextPart();
+        return parser.transferPart(OutputStream.nullOutputStream(), Long.MAX_VALUE);
+    }
+
+    // Random content gives a scanner no repetitive runs to take advantage of
+    static byte[] multipartBody(int size) {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] body = new byte[head.length + size + tail.length];
+        System.arraycopy(head, 0, body, 0, head.length);
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        System.arraycopy(content, 0, body, head.length, size);
+        System.arraycopy(tail, 0, body, head.length + size, tail.length);
+        return body;
+    }
+}
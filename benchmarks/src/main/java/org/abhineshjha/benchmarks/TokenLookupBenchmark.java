@@ -0,0 +1,94 @@
+package org.abhineshjha.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.service.BlobStore;
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.ShareJournal;
+import org.abhineshjha.utils.TimerWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FileSharer.getPortByToken, run on every download, for known and unknown
+// tokens at different numbers of live shares. Runs on 4 threads so reads
+// contending on the registry show up.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@Threads(4)
+public class TokenLookupBenchmark {
+    private static final String ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ";
+
+    @Param({"1000", "100000", "1000000"})
+    public int shares;
+
+    private File dir;
+    private FileSharer fileSharer;
+    private String[] tokens;
+    private String[] unknownTokens;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("token-bench").toFile();
+        BlobStore blobStore = new BlobStore(dir.getPath());
+        // Shares never expire here, so the wheel is never started
+        TimerWheel timerWheel = new TimerWheel("bench-wheel", 1, TimeUnit.SECONDS, 64);
+        fileSharer = new FileSharer(blobStore, new ShareJournal(dir.getPath()), timerWheel, 0);
+        fileSharer.restore(dir.getPath());
+
+        tokens = new String[shares];
+        for (int i = 0; i < shares; i++) {
+            tokens[i] = fileSharer.getToken(fileSharer.offerFile(dir + File.separator + "file" + i));
+        }
+        Random random = new Random(42);
+        unknownTokens = new String[Math.min(shares, 65536)];
+        for (int i = 0; i < unknownTokens.length; i++) {
+            StringBuilder token = new StringBuilder();
+            for (int c = 0; c < 12; c++) {
+                token.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            unknownTokens[i] = token.toString();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSharer.close();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public Integer knownToken(Cursor cursor) {
+        if (++cursor.next >= tokens.length) cursor.next = 0;
+        return fileSharer.getPortByToken(tokens[cursor.next]);
+    }
+
+    @Benchmark
+    public Integer unknownToken(Cursor cursor) {
+        if (++cursor.next >= unknownTokens.length) cursor.next = 0;
+        return fileSharer.getPortByToken(unknownTokens[cursor.next]);
+    }
+}
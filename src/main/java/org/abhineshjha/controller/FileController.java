@@ -1,51 +1,186 @@
-package org.abhineshjha.controller;
-
-import java.io.File;
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import org.abhineshjha.handler.CORSHandler;
-import org.abhineshjha.handler.DownloadHandler;
-import org.abhineshjha.handler.UploadHandler;
-import org.abhineshjha.service.FileSharer;
-
-import com.sun.net.httpserver.HttpServer;
-
-public class FileController {
-    private final FileSharer fileSharer;
-    private final HttpServer httpServer;
-    private final String uploadDir;
-    private final ExecutorService executorService;
-
-    public FileController(int port) throws IOException {
-        this.fileSharer = new FileSharer();
-        this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
-
-        File uploadDirs = new File(uploadDir);
-        if (!uploadDirs.exists()) {
-            uploadDirs.mkdirs();
-        }
-
-        // Wire handlers
-        httpServer.createContext("/upload", new UploadHandler(uploadDir, fileSharer));
-        httpServer.createContext("/download", new DownloadHandler(fileSharer));
-        httpServer.createContext("/", new CORSHandler());
-        httpServer.setExecutor(executorService);
-    }
-
-    public void start() {
-        httpServer.start();
-        System.out.println("API server started on port " + httpServer.getAddress().getPort());
-    }
-
-    public void stop() {
-        httpServer.stop(0);
-        executorService.shutdown();
-        System.out.println("API Server stopped");
-    }
-}
- 
+package org.abhineshjha.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.handler.CORSHandler;
+import org.abhineshjha.handler.ChunkedUploadHandler;
+import org.abhineshjha.handler.ClusterProxy;
+import org.abhineshjha.handler.DownloadHandler;
+import org.abhineshjha.handler.MetricsFilter;
+import org.abhineshjha.handler.MetricsHandler;
+import org.abhineshjha.handler.RateLimits;
+import org.abhineshjha.handler.RelayHandler;
+import org.abhineshjha.handler.UploadHandler;
+import org.abhineshjha.service.BlobStore;
+import org.abhineshjha.service.ClusterRouter;
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.GzipVariants;
+import org.abhineshjha.service.HotFileCache;
+import org.abhineshjha.service.ShareJournal;
+import org.abhineshjha.service.StorageManager;
+import org.abhineshjha.service.TransferServer;
+import org.abhineshjha.service.UploadSessionManager;
+import org.abhineshjha.utils.Metrics;
+import org.abhineshjha.utils.PinnedThreadMonitor;
+import org.abhineshjha.utils.ServerConfig;
+import org.abhineshjha.utils.TimerWheel;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class FileController {
+    private final FileSharer fileSharer;
+    private final HttpServer httpServer;
+    private final String uploadDir;
+    private final BlobStore blobStore;
+    private final ExecutorService executorService;
+    private final TransferServer transferServer;
+    private final ServerConfig config;
+    private final PinnedThreadMonitor pinnedThreadMonitor;
+    private final TimerWheel timerWheel;
+    private final GzipVariants gzipVariants;
+    private final HotFileCache hotFileCache;
+    private final StorageManager storageManager;
+    private final ClusterRouter clusterRouter;
+    private final ClusterProxy clusterProxy;
+    private final Metrics metrics = new Metrics();
+
+    public FileController(ServerConfig config) throws IOException {
+        this.config = config;
+        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
+        this.blobStore = new BlobStore(uploadDir, config.fsyncPolicy);
+        // One-second ticks, 512 slots per lap; TTLs are minutes to days
+        this.timerWheel = new TimerWheel("expiry-wheel", 1, TimeUnit.SECONDS, 512);
+        this.fileSharer = new FileSharer(blobStore, new ShareJournal(uploadDir), timerWheel,
+                TimeUnit.SECONDS.toMillis(config.shareTtlSeconds));
+        this.storageManager = new StorageManager(blobStore, fileSharer, config.diskQuotaBytes);
+        // In a cluster each node hands out only the tokens it owns, and
+        // relays downloads for the others to their owners
+        this.clusterRouter = config.clusterPeers.isBlank()
+                ? new ClusterRouter()
+                : new ClusterRouter(config.clusterPeers, config.clusterSelf);
+        fileSharer.setTokenFilter(clusterRouter::owns);
+        this.clusterProxy = new ClusterProxy(clusterRouter, config.clusterSecret);
+        this.httpServer = HttpServer.create(new InetSocketAddress(config.port), 0);
+        this.gzipVariants = new GzipVariants(blobStore);
+        this.hotFileCache = new HotFileCache(config.hotCacheBytes, config.hotCacheMaxFileBytes);
+        blobStore.setRemovalListener(hotFileCache::invalidate);
+        this.transferServer = new TransferServer(fileSharer, timerWheel, config.transferPort);
+        this.pinnedThreadMonitor = new PinnedThreadMonitor();
+
+        // Handlers block on socket and disk I/O for the whole transfer. On
+        // virtual threads each exchange gets its own cheap thread, so the
+        // number of concurrent transfers is not capped by a pool size.
+        if (config.executionMode == ServerConfig.ExecutionMode.VIRTUAL) {
+            this.executorService = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("http-", 0).factory());
+        } else {
+            this.executorService = Executors.newFixedThreadPool(config.executorThreads);
+        }
+
+        File uploadDirs = new File(uploadDir);
+        if (!uploadDirs.exists()) {
+            uploadDirs.mkdirs();
+        }
+        // Bring back the shares that were live before the last shutdown or crash
+        fileSharer.restore(uploadDir);
+
+        // Wire handlers
+        UploadSessionManager sessionManager = new UploadSessionManager(uploadDir, timerWheel,
+                TimeUnit.SECONDS.toMillis(config.uploadIdleSeconds));
+        RateLimits rateLimits = new RateLimits(config, timerWheel);
+        rateLimits.trustForwardedFrom(clusterProxy::isRelayed);
+        httpServer.createContext("/upload", new UploadHandler(blobStore, fileSharer, rateLimits, gzipVariants, hotFileCache,
+                        storageManager))
+                .getFilters().add(new MetricsFilter(metrics, metrics.uploadLatency));
+        httpServer.createContext("/uploads",
+                new ChunkedUploadHandler(sessionManager, blobStore, fileSharer, rateLimits, gzipVariants,
+                        hotFileCache, storageManager))
+                .getFilters().add(new MetricsFilter(metrics, null));
+        RelayHandler relayHandler = new RelayHandler(fileSharer, rateLimits,
+                TimeUnit.SECONDS.toMillis(config.uploadIdleSeconds));
+        httpServer.createContext("/relay", relayHandler)
+                .getFilters().add(new MetricsFilter(metrics, null));
+        httpServer.createContext("/download", new DownloadHandler(fileSharer, rateLimits, gzipVariants, hotFileCache,
+                        clusterProxy))
+                .getFilters().add(new MetricsFilter(metrics, metrics.downloadLatency));
+        httpServer.createContext("/metrics", new MetricsHandler(metrics));
+        httpServer.createContext("/", new CORSHandler());
+        httpServer.setExecutor(executorService);
+        registerGauges(sessionManager, relayHandler);
+    }
+
+    private void registerGauges(UploadSessionManager sessionManager, RelayHandler relayHandler) {
+        metrics.gauge("p2p_active_shares", "Shares waiting to be downloaded", fileSharer::shareCount);
+        metrics.gauge("p2p_transfer_connections", "Open peer sockets on the transfer server",
+                transferServer::getOpenConnections);
+        metrics.gauge("p2p_upload_sessions", "Chunked upload sessions in progress", sessionManager::sessionCount);
+        if (executorService instanceof ThreadPoolExecutor pool) {
+            metrics.gauge("p2p_executor_queue_depth", "HTTP exchanges waiting for a pool thread",
+                    () -> pool.getQueue().size());
+        }
+        metrics.gauge("p2p_disk_usage_bytes", "dir=\"blobs\"", "Bytes on disk by directory", blobStore::storedBytes);
+        metrics.gauge("p2p_disk_usage_bytes", "dir=\"incoming\"", "Bytes on disk by directory", blobStore::incomingBytes);
+        metrics.gauge("p2p_disk_usage_bytes", "dir=\"sessions\"", "Bytes on disk by directory", sessionManager::partBytes);
+        metrics.gauge("p2p_storage_quota_bytes", "Disk quota for stored and incoming uploads, 0 if none",
+                storageManager::quotaBytes);
+        metrics.gauge("p2p_storage_reserved_bytes", "Disk space held for uploads in progress",
+                storageManager::reservedBytes);
+        metrics.counter("p2p_storage_evictions_total", "Shares evicted to make room for uploads",
+                storageManager::evictions);
+        metrics.counter("p2p_storage_refusals_total", "Uploads refused for lack of disk space",
+                storageManager::refusals);
+        metrics.counter("p2p_relayed_bytes_total", "Bytes streamed from uploaders straight to recipients",
+                relayHandler::relayedBytes);
+        metrics.counter("p2p_cluster_forwarded_total", "Downloads relayed to the node owning the share",
+                clusterProxy::forwarded);
+        metrics.counter("p2p_hot_cache_hits_total", "Downloads served from the hot cache", hotFileCache::hits);
+        metrics.counter("p2p_hot_cache_misses_total", "Downloads the hot cache could not serve", hotFileCache::misses);
+        metrics.counter("p2p_hot_cache_evictions_total", "Blobs evicted from the hot cache", hotFileCache::evictions);
+        metrics.counter("p2p_hot_cache_rejections_total", "Blobs the hot cache declined to take",
+                hotFileCache::rejections);
+        metrics.gauge("p2p_hot_cache_entries", "Blobs in the hot cache", hotFileCache::size);
+        metrics.gauge("p2p_hot_cache_bytes", "Off-heap memory used by the hot cache", hotFileCache::usedBytes);
+        metrics.counter("p2p_virtual_thread_pinned_total", "Virtual threads that pinned their carrier past the threshold",
+                pinnedThreadMonitor::getPinnedCount);
+        metrics.secondsCounter("p2p_virtual_thread_pinned_seconds_total", "Time virtual threads spent pinned",
+                pinnedThreadMonitor::getPinnedNanos);
+        metrics.counter("p2p_virtual_thread_submit_failures_total", "Virtual threads that could not be scheduled",
+                pinnedThreadMonitor::getSubmitFailures);
+    }
+
+    public void start() {
+        if (config.executionMode == ServerConfig.ExecutionMode.VIRTUAL) {
+            pinnedThreadMonitor.start(Duration.ofMillis(config.pinnedThresholdMs));
+        }
+        timerWheel.start();
+        httpServer.start();
+        transferServer.start();
+        System.out.println("API server started on port " + httpServer.getAddress().getPort());
+        if (clusterRouter.isClustered()) {
+            System.out.println("Cluster node " + config.clusterSelf + " of " + clusterRouter.size());
+        }
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+        transferServer.stop();
+        executorService.shutdown();
+        pinnedThreadMonitor.stop();
+        timerWheel.stop();
+        gzipVariants.close();
+        fileSharer.close();
+        System.out.println("API Server stopped");
+    }
+}
+ 
@@ -0,0 +1,242 @@
+package org.abhineshjha.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.abhineshjha.service.BlobStore;
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.GzipVariants;
+import org.abhineshjha.service.HotFileCache;
+import org.abhineshjha.service.StorageManager;
+import org.abhineshjha.service.UploadSessionManager;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+// Resumable upload API, next to the single-shot /upload:
+//   POST   /uploads?name=<file>&size=<bytes>  start a session
+//   PUT    /uploads/<id>?offset=<n>           write one chunk (raw body)
+//   GET    /uploads/<id>                      received ranges, for resuming
+//   POST   /uploads/<id>/complete             share the file, returns port, token and SHA-256;
+//          [?maxDownloads=<n>&expiresIn=<s>]  optional limits, as for /upload
+//   DELETE /uploads/<id>                      abort and discard
+public class ChunkedUploadHandler implements HttpHandler {
+    private static final String CONTEXT = "/uploads";
+
+    private final UploadSessionManager sessionManager;
+    private final BlobStore blobStore;
+    private final FileSharer fileSharer;
+    private final RateLimits rateLimits;
+    private final GzipVariants gzipVariants;
+    private final HotFileCache hotFileCache;
+    private final StorageManager storageManager;
+
+    public ChunkedUploadHandler(UploadSessionManager sessionManager, BlobStore blobStore, FileSharer fileSharer,
+                                RateLimits rateLimits, GzipVariants gzipVariants, HotFileCache hotFileCache,
+                                StorageManager storageManager) {
+        this.sessionManager = sessionManager;
+        this.blobStore = blobStore;
+        this.fileSharer = fileSharer;
+        this.rateLimits = rateLimits;
+        this.gzipVariants = gzipVariants;
+        this.hotFileCache = hotFileCache;
+        this.storageManager = storageManager;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Access-Control-Allow-Methods", "GET,POST,PUT,DELETE,OPTIONS");
+        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (method.equals("OPTIONS")) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        if (!rateLimits.admitRequest(exchange)) {
+            return;
+        }
+
+        // Path after the context: "" for session creation, "<id>" or "<id>/complete"
+        String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+        if (path.startsWith("/")) path = path.substring(1);
+        String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+
+        try {
+            if (segments.length == 0 && method.equals("POST")) {
+                // A session is one upload, whatever number of chunks follows
+                if (rateLimits.admitUpload(exchange)) {
+                    createSession(exchange);
+                }
+                return;
+            }
+            if (segments.length == 0) {
+                sendResponse(exchange, 405, "Method Not Allowed", "text/plain");
+                return;
+            }
+
+            UploadSessionManager.Session session = sessionManager.get(segments[0]);
+            if (session == null) {
+                sendResponse(exchange, 404, "Upload session not found", "text/plain");
+                return;
+            }
+
+            if (segments.length == 2 && segments[1].equals("complete") && method.equals("POST")) {
+                completeSession(exchange, session);
+            } else if (segments.length == 1 && method.equals("PUT")) {
+                writeChunk(exchange, session);
+            } else if (segments.length == 1 && method.equals("GET")) {
+                sendResponse(exchange, 200, statusJson(session), "application/json");
+            } else if (segments.length == 1 && method.equals("DELETE")) {
+                sessionManager.abort(session);
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                sendResponse(exchange, 405, "Method Not Allowed", "text/plain");
+            }
+        } catch (IllegalArgumentException ex) {
+            sendResponse(exchange, 400, "Bad request: " + ex.getMessage(), "text/plain");
+        } catch (IllegalStateException ex) {
+            sendResponse(exchange, 409, ex.getMessage(), "text/plain"); // 409 Conflict
+        } catch (StorageManager.StorageFullException ex) {
+            UploadHandler.sendStorageFull(exchange, ex);
+        } catch (IOException ex) {
+            System.err.println("Error processing chunked upload: " + ex.getMessage());
+            sendResponse(exchange, 500, "Server error: " + ex.getMessage(), "text/plain");
+        }
+    }
+
+    private void createSession(HttpExchange exchange) throws IOException {
+        String fileName = queryParam(exchange, "name");
+        String sizeParam = queryParam(exchange, "size");
+        if (fileName == null || fileName.trim().isEmpty() || sizeParam == null) {
+            sendResponse(exchange, 400, "Bad request: name and size are required", "text/plain");
+            return;
+        }
+        long size;
+        try {
+            size = Long.parseLong(sizeParam);
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            sendResponse(exchange, 400, "Bad request: invalid size", "text/plain");
+            return;
+        }
+        if (size > UploadHandler.MAX_FILE_SIZE) {
+            sendResponse(exchange, 413, "File too large: Maximum file size is "
+                    + (UploadHandler.MAX_FILE_SIZE / (1024 * 1024)) + "MB", "text/plain");
+            return;
+        }
+        if (!UploadHandler.isAllowedExtension(fileName)) {
+            sendResponse(exchange, 415, "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv", "text/plain");
+            return;
+        }
+
+        // The declared size is claimed for the session until it completes or
+        // is aborted; the claim evicts nothing, only the chunks written do
+        StorageManager.Reservation reservation;
+        try {
+            reservation = storageManager.reserve(size);
+        } catch (StorageManager.StorageFullException ex) {
+            UploadHandler.sendStorageFull(exchange, ex);
+            return;
+        }
+        UploadSessionManager.Session session;
+        try {
+            session = sessionManager.create(fileName, size, reservation);
+        } catch (IOException ex) {
+            reservation.close();
+            throw ex;
+        }
+        exchange.getResponseHeaders().add("Location", CONTEXT + "/" + session.id);
+        sendResponse(exchange, 201, statusJson(session), "application/json");
+    }
+
+    private void writeChunk(HttpExchange exchange, UploadSessionManager.Session session) throws IOException {
+        String offsetParam = queryParam(exchange, "offset");
+        long offset;
+        try {
+            offset = offsetParam == null ? 0 : Long.parseLong(offsetParam);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid offset");
+        }
+        // A chunk that cannot fit is refused on its declared length, unread
+        long declaredLength = UploadHandler.contentLength(exchange.getRequestHeaders());
+        if (declaredLength != Long.MAX_VALUE && offset >= 0 && offset + declaredLength > session.size) {
+            throw new IllegalArgumentException("Chunk extends past declared size " + session.size);
+        }
+        try (InputStream body = rateLimits.throttleUpload(exchange)) {
+            long written = sessionManager.writeChunk(session, offset, body);
+            sendResponse(exchange, 200, "{\"offset\": " + offset + ", \"written\": " + written
+                    + ", \"received\": " + session.receivedBytes() + "}", "application/json");
+        }
+    }
+
+    private void completeSession(HttpExchange exchange, UploadSessionManager.Session session) throws IOException {
+        // Bad limits are refused before the session is used up
+        long[] limits = UploadHandler.shareLimits(exchange.getRequestURI().getQuery());
+        File file = sessionManager.complete(session);
+        String digest;
+        try {
+            digest = blobStore.commitFile(file, session.streamedDigest(), session.hashedBytes());
+        } catch (IOException ex) {
+            // The session is closed already, so nothing else would remove its file
+            if (file.exists() && !file.delete()) {
+                System.err.println("Failed to delete file: " + file.getName());
+            }
+            throw ex;
+        } finally {
+            session.reservation.close();
+        }
+        int port = fileSharer.offerBlob(digest, new File(session.fileName).getName(), (int) limits[0], limits[1]);
+        String token = fileSharer.getToken(port);
+        gzipVariants.prepare(digest, session.fileName);
+        hotFileCache.offer(digest, blobStore.blobFile(digest));
+        String jsonResponse = "{\"port\": " + port + ", \"token\": \"" + token
+                + "\", \"maxDownloads\": " + limits[0] + ", \"sha256\": \"" + digest + "\"}";
+        sendResponse(exchange, 200, jsonResponse, "application/json");
+    }
+
+    private static String statusJson(UploadSessionManager.Session session) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"sessionId\": \"").append(session.id)
+            .append("\", \"size\": ").append(session.size)
+            .append(", \"received\": ").append(session.receivedBytes())
+            .append(", \"ranges\": [");
+        List<long[]> ranges = session.receivedRanges();
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) json.append(", ");
+            json.append('[').append(ranges.get(i)[0]).append(", ").append(ranges.get(i)[1]).append(']');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) return null;
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static void sendResponse(HttpExchange exchange, int status, String body, String contentType)
+            throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        if (status >= 400) {
+            UploadHandler.refuseBody(exchange);
+        }
+        exchange.sendResponseHeaders(status, body.getBytes().length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body.getBytes());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.abhineshjha.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.abhineshjha.service.ClusterRouter;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+// Passes downloads for tokens owned by another cluster node through to that
+// node. The response streams straight from the owner's socket to the
+// client's, headers first, so nothing is buffered here whatever the file
+// size. The relayed request names the client in X-Forwarded-For; the owner
+// takes that as the client address for its rate limits and never relays
+// such a request again. Only a request that also carries the cluster secret
+// and comes from a peer's address counts as relayed: peers may share a host
+// with ordinary clients, and the header alone is anyone's to send. An owner
+// that has not answered with headers within RESPONSE_TIMEOUT is given up
+// on with a 502.
+public class ClusterProxy {
+    static final String FORWARDED_FOR = "X-Forwarded-For";
+    static final String CLUSTER_SECRET = "X-Cluster-Secret";
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(30);
+    private static final String[] REQUEST_HEADERS = {
+        "Range", "If-Range", "If-None-Match", "Accept-Encoding"
+    };
+    private static final String[] RESPONSE_HEADERS = {
+        "Content-Type", "Content-Disposition", "Content-Encoding", "Content-Range", "Accept-Ranges",
+        "ETag", "Last-Modified", "Repr-Digest", "Digest", "Vary", "Retry-After"
+    };
+
+    private final ClusterRouter router;
+    private final byte[] secret;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final AtomicLong forwarded = new AtomicLong();
+
+    public ClusterProxy(ClusterRouter router, String secret) {
+        if (router.isClustered() && secret.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs a shared secret (CLUSTER_SECRET)");
+        }
+        this.router = router;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // A request one of our peers relayed on behalf of a client
+    public boolean isRelayed(HttpExchange exchange) {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String presented = requestHeaders.getFirst(CLUSTER_SECRET);
+        return requestHeaders.getFirst(FORWARDED_FOR) != null
+                && presented != null && secret.length > 0
+                && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8))
+                && router.isPeer(exchange.getRemoteAddress().getAddress());
+    }
+
+    // Relay the download to the token's owner and stream back its answer.
+    // Returns false, having sent nothing, if the token is this node's or the
+    // request was relayed to us already.
+    boolean forward(HttpExchange exchange, String token) throws IOException {
+        URI owner = router.remoteOwner(token);
+        if (owner == null || isRelayed(exchange)) {
+            return false;
+        }
+        URI requestUri = exchange.getRequestURI();
+        String target = owner + requestUri.getRawPath()
+                + (requestUri.getRawQuery() == null ? "" : "?" + requestUri.getRawQuery());
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(target)).GET()
+                .timeout(RESPONSE_TIMEOUT)
+                .header(FORWARDED_FOR, exchange.getRemoteAddress().getAddress().getHostAddress())
+                .header(CLUSTER_SECRET, new String(secret, StandardCharsets.UTF_8));
+        Headers requestHeaders = exchange.getRequestHeaders();
+        for (String name : REQUEST_HEADERS) {
+            for (String value : requestHeaders.getOrDefault(name, List.of())) {
+                request.header(name, value);
+            }
+        }
+
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted relaying download");
+        } catch (IOException e) {
+            System.err.println("Cluster node " + owner + " unavailable: " + e);
+            String message = "Owner of this share is unavailable";
+            exchange.getResponseHeaders().add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(502, message.getBytes().length); // 502 Bad Gateway
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(message.getBytes());
+            }
+            return true;
+        }
+
+        forwarded.incrementAndGet();
+        Headers headers = exchange.getResponseHeaders();
+        for (String name : RESPONSE_HEADERS) {
+            for (String value : response.headers().allValues(name)) {
+                headers.add(name, value);
+            }
+        }
+        int status = response.statusCode();
+        OptionalLong length = response.headers().firstValueAsLong("Content-Length");
+        long responseLength;
+        if (status == 204 || status == 304 || length.isPresent() && length.getAsLong() == 0) {
+            responseLength = -1;
+        } else {
+            responseLength = length.isPresent() ? length.getAsLong() : 0; // 0: chunked
+        }
+        try (InputStream in = response.body()) {
+            exchange.sendResponseHeaders(status, responseLength);
+            try (OutputStream os = exchange.getResponseBody()) {
+                in.transferTo(os);
+            }
+        } catch (IOException e) {
+            // Too late for an error status, the client sees a truncated body
+            System.err.println("Relayed download from " + owner + " cut short: " + e.getMessage());
+            exchange.close();
+        }
+        return true;
+    }
+
+    public long forwarded() {
+        return forwarded.get();
+    }
+}
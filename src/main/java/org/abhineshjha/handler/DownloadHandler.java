@@ -1,130 +1,454 @@
-package org.abhineshjha.handler;
-
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-
-import org.abhineshjha.service.FileSharer;
-
-import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-
-public class DownloadHandler implements HttpHandler {
-    private final FileSharer fileSharer;
-
-    public DownloadHandler(FileSharer fileSharer) {
-        this.fileSharer = fileSharer;
-    }
-
-    @Override
-    public void handle(HttpExchange exchange) throws IOException {
-        Headers headers = exchange.getResponseHeaders();
-        headers.add("Access-Control-Allow-Origin", "*");
-        headers.add("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
-        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
-
-        if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
-            exchange.sendResponseHeaders(204, -1);
-            return;
-        }
-
-        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
-            String response = "Method Not Allowed";
-            exchange.sendResponseHeaders(405, response.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
-            }
-            return;
-        }
-
-        // Get token from query parameter
-        String query = exchange.getRequestURI().getQuery();
-        String token = null;
-        if (query != null) {
-            String[] params = query.split("&");
-            for (String param : params) {
-                if (param.startsWith("token=")) {
-                    token = param.substring(6);
-                    break;
-                }
-            }
-        }
-
-        try {
-            // Ignore port in path, use only token for lookup
-            Integer port = fileSharer.getPortByToken(token);
-            if (port == null) {
-                String response = "Access denied: Invalid or missing token";
-                headers.add("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(403, response.getBytes().length); // 403 Forbidden
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-            
-            try (Socket socket = new Socket("localhost", port)) {
-                InputStream socketInput = socket.getInputStream();
-                File tempFile = File.createTempFile("download-", ".tmp");
-                tempFile.deleteOnExit(); // Extra safety: delete if JVM exits
-                String fileName = "downloaded-file";
-                try {
-                    try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int byteRead;
-                        ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-                        int b;
-                        while ((b = socketInput.read()) != -1) {
-                            if (b == '\n') break;
-                            headerBaos.write(b);
-                        }
-
-                        String header = headerBaos.toString().trim();
-
-                        if (header.startsWith("Filename: ")) {
-                            fileName = header.substring("Filename: ".length());
-                        }
-                        while ((byteRead = socketInput.read(buffer)) != -1) {
-                            fileOutputStream.write(buffer, 0, byteRead);
-                        }
-                    }
-
-                    // Send the file to the client
-                    headers.add("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
-                    headers.add("Content-Type", "application/octet-stream");
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    try (OutputStream os = exchange.getResponseBody();
-                         FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
-                    }
-                    
-                    fileSharer.cleanupAfterDownload(port);
-                    
-                } finally {
-                    // Always delete temp file
-                    if (tempFile.exists()) {
-                        tempFile.delete();
-                    }
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error downloading file from peer: " + e.getMessage());
-            String response = "Error downloading file: " + e.getMessage();
-            headers.add("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(500, response.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
-            }
-        }
-    }
-}
\ No newline at end of file
+package org.abhineshjha.handler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.GzipVariants;
+import org.abhineshjha.service.HotFileCache;
+import org.abhineshjha.service.Share;
+import org.abhineshjha.utils.HttpConditions;
+import org.abhineshjha.utils.HttpEncodings;
+import org.abhineshjha.utils.HttpRanges;
+import org.abhineshjha.utils.RelayBuffer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class DownloadHandler implements HttpHandler {
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // Retry-After when every download of a share is taken by a transfer in progress
+    private static final long BUSY_RETRY_SECONDS = 5;
+
+    private final FileSharer fileSharer;
+    private final RateLimits rateLimits;
+    private final GzipVariants gzipVariants;
+    private final HotFileCache hotFileCache;
+    private final ClusterProxy clusterProxy;
+
+    public DownloadHandler(FileSharer fileSharer, RateLimits rateLimits, GzipVariants gzipVariants,
+                           HotFileCache hotFileCache, ClusterProxy clusterProxy) {
+        this.fileSharer = fileSharer;
+        this.rateLimits = rateLimits;
+        this.gzipVariants = gzipVariants;
+        this.hotFileCache = hotFileCache;
+        this.clusterProxy = clusterProxy;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
+        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+
+        if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        if (!rateLimits.admitRequest(exchange)) {
+            return;
+        }
+
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            String response = "Method Not Allowed";
+            exchange.sendResponseHeaders(405, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            return;
+        }
+
+        // Get token from query parameter
+        String query = exchange.getRequestURI().getQuery();
+        String token = null;
+        if (query != null) {
+            String[] params = query.split("&");
+            for (String param : params) {
+                if (param.startsWith("token=")) {
+                    token = param.substring(6);
+                    break;
+                }
+            }
+        }
+
+        boolean headersSent = false;
+        Share share = null;
+        boolean downloaded = false; // The recipient got the whole file
+        try {
+            // Ignore port in path, use only token for lookup
+            Integer port = fileSharer.getPortByToken(token);
+            // Shares are looked up here first, so ones restored after the
+            // cluster changed shape stay reachable; otherwise the token's
+            // owner may have it
+            if (port == null && clusterProxy.forward(exchange, token)) {
+                return;
+            }
+            if (port == null) {
+                String response = "Access denied: Invalid or missing token";
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(403, response.getBytes().length); // 403 Forbidden
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+            // Many clients hammering one link are limited together
+            if (!RateLimits.admit(exchange, rateLimits.shareRequests, String.valueOf(port),
+                    "Rate limit exceeded: too many requests for this file")) {
+                return;
+            }
+            
+            // Each transfer claims one of the share's downloads for as long as
+            // it runs, and the file outlives the share until the last is done
+            share = fileSharer.acquireReader(port);
+            if (share == null && fileSharer.getShare(port) != null) {
+                String response = "Every download of this share is in progress; try again later";
+                headers.add("Content-Type", "text/plain");
+                headers.add("Retry-After", String.valueOf(BUSY_RETRY_SECONDS));
+                exchange.sendResponseHeaders(503, response.getBytes().length); // 503 Service Unavailable
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+            if (share != null && share.isRelay()) {
+                headersSent = true;
+                downloaded = sendRelay(exchange, share);
+                return;
+            }
+            if (share != null && share.isBundle()) {
+                headersSent = true;
+                sendBundle(exchange, share);
+                downloaded = true;
+                return;
+            }
+            File file = share == null ? null : new File(share.filePath);
+            if (file == null || !file.isFile()) {
+                String response = "File no longer available";
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(404, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+
+            // Whole-file downloads of compressible content go out precompressed
+            Headers requestHeaders = exchange.getRequestHeaders();
+            File gzipFile = null;
+            if (share.digest != null) {
+                headers.add("Vary", "Accept-Encoding");
+                if (requestHeaders.getFirst("Range") == null
+                        && HttpEncodings.acceptsGzip(requestHeaders.getFirst("Accept-Encoding"))) {
+                    gzipFile = gzipVariants.variant(share.digest);
+                    if (gzipFile == null) {
+                        // E.g. shares restored after a restart: compress on first demand
+                        gzipVariants.prepare(share.digest, share.fileName);
+                    }
+                }
+            }
+
+            // Blobs are named by the SHA-256 taken at upload: a strong validator
+            // that holds across restarts and cluster nodes. Other files fall
+            // back to size and modification time.
+            String etag = share.digest != null
+                    ? "\"" + share.digest + "\""
+                    : "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+            String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(file.lastModified()));
+            // A different representation needs its own strong validator
+            String selectedEtag = gzipFile != null ? etag.substring(0, etag.length() - 1) + "-gzip\"" : etag;
+            headers.add("ETag", selectedEtag);
+            headers.add("Last-Modified", lastModified);
+            if (share.digest != null && gzipFile == null) {
+                // The whole file's digest, on partial responses too, so a client
+                // can check what it put together
+                String sha256 = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(share.digest));
+                headers.add("Repr-Digest", "sha-256=:" + sha256 + ":");
+                headers.add("Digest", "SHA-256=" + sha256);
+            }
+            if (HttpConditions.noneMatchHits(requestHeaders.getFirst("If-None-Match"), selectedEtag)) {
+                exchange.sendResponseHeaders(304, -1); // 304 Not Modified
+                return;
+            }
+
+            // Small blobs in the hot cache go out from memory, without opening the file
+            if (gzipFile == null && share.digest != null && requestHeaders.getFirst("Range") == null) {
+                HotFileCache.Entry cached = hotFileCache.acquire(share.digest);
+                if (cached != null) {
+                    boolean complete;
+                    headersSent = true;
+                    try {
+                        complete = sendCached(exchange, port, cached);
+                    } finally {
+                        cached.release();
+                    }
+                    downloaded = complete;
+                    return;
+                }
+            }
+
+            // Serve straight from the stored file: no socket hop, no temp copy
+            boolean complete;
+            // This request's own channel, see Share.openChannel
+            try (FileChannel channel = share.openChannel()) {
+                long size = channel.size();
+                headers.add("Accept-Ranges", "bytes");
+                headers.add("Content-Disposition", contentDisposition(share.fileName));
+
+                List<long[]> ranges = HttpRanges.parse(requestHeaders.getFirst("Range"), size);
+                // If-Range: only honour the Range header if the client's copy is current
+                String ifRange = requestHeaders.getFirst("If-Range");
+                if (ranges != null && ifRange != null && !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+                    ranges = null;
+                }
+
+                if (ranges != null && ranges.isEmpty()) {
+                    headers.add("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1); // 416 Range Not Satisfiable
+                    return;
+                }
+
+                if (ranges == null && gzipFile != null) {
+                    complete = sendCompressed(exchange, port, gzipFile, size);
+                    headersSent = true;
+                } else if (ranges == null) {
+                    headers.add("Content-Type", "application/octet-stream");
+                    // A length of 0 would switch the server to chunked encoding
+                    exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+                    headersSent = true;
+                    try (OutputStream os = rateLimits.throttleDownload(exchange, port)) {
+                        copyRange(channel, 0, size, Channels.newChannel(os));
+                    }
+                    complete = delivered(exchange, port, 0, size, size);
+                } else if (ranges.size() == 1) {
+                    long first = ranges.get(0)[0];
+                    long last = ranges.get(0)[1];
+                    headers.add("Content-Type", "application/octet-stream");
+                    headers.add("Content-Range", "bytes " + first + "-" + last + "/" + size);
+                    exchange.sendResponseHeaders(206, last - first + 1); // 206 Partial Content
+                    headersSent = true;
+                    try (OutputStream os = rateLimits.throttleDownload(exchange, port)) {
+                        copyRange(channel, first, last - first + 1, Channels.newChannel(os));
+                    }
+                    complete = delivered(exchange, port, first, last + 1, size);
+                } else {
+                    complete = sendMultipleRanges(exchange, port, channel, ranges, size);
+                    headersSent = true;
+                }
+            }
+
+            // A download only counts once every byte has been delivered
+            downloaded = complete;
+        } catch (IOException e) {
+            System.err.println("Error downloading file: " + e.getMessage());
+            if (headersSent) {
+                // Too late for an error status, the client sees a truncated body
+                exchange.close();
+                return;
+            }
+            String response = "Error downloading file: " + e.getMessage();
+            headers.add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(500, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+        } finally {
+            if (share != null) {
+                fileSharer.releaseReader(share, downloaded);
+            }
+        }
+    }
+
+    // Whole file from the hot cache; the validators are set already
+    private boolean sendCached(HttpExchange exchange, int port, HotFileCache.Entry cached) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Accept-Ranges", "bytes");
+        headers.add("Content-Disposition", contentDisposition(fileSharer.getFileName(port)));
+        headers.add("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, cached.length);
+        try (OutputStream os = rateLimits.throttleDownload(exchange, port)) {
+            cached.transferTo(Channels.newChannel(os));
+        }
+        return delivered(exchange, port, 0, cached.length, cached.length);
+    }
+
+    // Whole file from its gzip variant. Ranges are always served from the
+    // original, so a client resuming a download never mixes encodings.
+    private boolean sendCompressed(HttpExchange exchange, int port, File gzipFile, long size)
+            throws IOException {
+        try (FileChannel variant = FileChannel.open(gzipFile.toPath(), StandardOpenOption.READ)) {
+            long length = variant.size();
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Content-Type", "application/octet-stream");
+            headers.add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, length);
+            try (OutputStream os = rateLimits.throttleDownload(exchange, port)) {
+                copyRange(variant, 0, length, Channels.newChannel(os));
+            }
+        }
+        return delivered(exchange, port, 0, size, size);
+    }
+
+    // Relay share: the upload as it arrives, to the one recipient there is.
+    // No ranges, validators or compression; the content does not exist yet.
+    // Returns true once the whole upload got through.
+    private boolean sendRelay(HttpExchange exchange, Share share) throws IOException {
+        RelayBuffer relay = share.relay;
+        Headers headers = exchange.getResponseHeaders();
+        if (!relay.attachReader()) {
+            String response = "Relay already has a recipient";
+            headers.add("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(503, response.getBytes().length); // 503 Service Unavailable
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+            return false;
+        }
+        headers.add("Content-Type", "application/octet-stream");
+        headers.add("Content-Disposition", contentDisposition(share.fileName));
+        // Chunked encoding when the uploader did not announce a size
+        exchange.sendResponseHeaders(200, relay.size < 0 ? 0 : relay.size == 0 ? -1 : relay.size);
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream os = rateLimits.throttleDownload(exchange, share.id)) {
+            int read;
+            while ((read = relay.read(buffer, 0, buffer.length)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // Lets the uploader know, if it was this side that failed
+            relay.fail("Recipient disconnected");
+            throw e;
+        }
+        return true;
+    }
+
+    // Multi-file share: one ZIP, built while it is sent, with nothing staged on
+    // disk. Already-compressed files are STORED using the size and CRC taken
+    // at upload; the rest is deflated on the fly at the fastest level, as it
+    // is redone for every download. No ranges: the archive is not repeatable
+    // byte for byte.
+    private void sendBundle(HttpExchange exchange, Share share) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", "application/zip");
+        headers.add("Content-Disposition", contentDisposition(share.fileName));
+        // The length is unknown until the last entry is deflated: chunked encoding
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = new BufferedOutputStream(rateLimits.throttleDownload(exchange, share.id), 64 * 1024);
+        writeBundle(share.entries, body);
+    }
+
+    // The ZIP itself; closes out
+    static void writeBundle(List<Share.Entry> entries, OutputStream out) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            for (Share.Entry file : entries) {
+                ZipEntry entry = new ZipEntry(file.name);
+                if (GzipVariants.isCompressedType(file.name)) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(file.size);
+                    entry.setCompressedSize(file.size);
+                    entry.setCrc(file.crc);
+                }
+                zip.putNextEntry(entry);
+                Files.copy(Path.of(file.filePath), zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    // multipart/byteranges response for requests with several ranges
+    private boolean sendMultipleRanges(HttpExchange exchange, int port, FileChannel channel,
+                                       List<long[]> ranges, long size) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + size + "\r\n\r\n";
+            partHeaders[i] = partHeader.getBytes(StandardCharsets.US_ASCII);
+            contentLength += partHeaders[i].length + (range[1] - range[0] + 1);
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        exchange.sendResponseHeaders(206, contentLength);
+        boolean complete = false;
+        try (OutputStream os = rateLimits.throttleDownload(exchange, port)) {
+            WritableByteChannel target = Channels.newChannel(os);
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                os.write(partHeaders[i]);
+                copyRange(channel, range[0], range[1] - range[0] + 1, target);
+                complete |= delivered(exchange, port, range[0], range[1] + 1, size);
+            }
+            os.write(closing);
+        }
+        return complete;
+    }
+
+    // RFC 6266: the exact name in filename*, UTF-8 and percent-encoded, and
+    // for older clients an ASCII filename with anything that could end the
+    // quoted string or the header line replaced
+    static String contentDisposition(String fileName) {
+        StringBuilder fallback = new StringBuilder();
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            fallback.append(c < 0x20 || c >= 0x7F || c == '"' || c == '\\' ? '_' : c);
+        }
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if (c < 0x80 && (Character.isLetterOrDigit(c) || "!#$&+-.^_`|~".indexOf(c) >= 0)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HexFormat.of().withUpperCase().toHexDigits((byte) c));
+            }
+        }
+        return "attachment; filename=\"" + fallback + "\"; filename*=UTF-8''" + encoded;
+    }
+
+    // Bytes [start, end) reached the client; true once it has the whole file
+    private boolean delivered(HttpExchange exchange, int port, long start, long end, long size) {
+        return fileSharer.recordDelivered(port, rateLimits.clientIp(exchange), start, end, size);
+    }
+
+    static void copyRange(FileChannel channel, long start, long length, WritableByteChannel target)
+            throws IOException {
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            long sent = channel.transferTo(position, end - position, target);
+            // Nothing sent and nothing left to send: the file shrank under us
+            if (sent == 0 && position >= channel.size()) {
+                throw new IOException("File truncated at " + position + " of " + end + " bytes");
+            }
+            position += sent;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.abhineshjha.handler;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.abhineshjha.utils.LatencyHistogram;
+import org.abhineshjha.utils.Metrics;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+// Instruments every exchange on a context: counts the body bytes in both
+// directions, counts error statuses, and times successful exchanges from
+// the request line to the last byte of the response.
+public class MetricsFilter extends Filter {
+    private final Metrics metrics;
+    private final LatencyHistogram latency; // Null to skip timing
+
+    public MetricsFilter(Metrics metrics, LatencyHistogram latency) {
+        this.metrics = metrics;
+        this.latency = latency;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        exchange.setStreams(new CountingInputStream(exchange.getRequestBody(), metrics.bytesReceived),
+                new CountingOutputStream(exchange.getResponseBody(), metrics.bytesSent));
+        metrics.inFlight.increment();
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            metrics.inFlight.decrement();
+            int status = exchange.getResponseCode();
+            if (status >= 400) {
+                metrics.rejected(status);
+            } else if (latency != null && status >= 200 && status < 300
+                    && !exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Request metrics";
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final LongAdder counter;
+
+        CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder counter;
+
+        CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+}
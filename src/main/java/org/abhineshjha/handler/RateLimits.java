@@ -0,0 +1,91 @@
+package org.abhineshjha.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.abhineshjha.utils.RateLimiter;
+import org.abhineshjha.utils.ServerConfig;
+import org.abhineshjha.utils.ThrottledInputStream;
+import org.abhineshjha.utils.ThrottledOutputStream;
+import org.abhineshjha.utils.TimerWheel;
+
+import com.sun.net.httpserver.HttpExchange;
+
+// Rate limits shared by the HTTP handlers: request rates per client IP and
+// per share, and byte rates for the bodies moving in either direction
+public class RateLimits {
+    final RateLimiter requests;       // Requests per second per client IP
+    final RateLimiter uploads;        // New uploads per client IP
+    final RateLimiter ipBandwidth;    // Bytes per second per client IP, uploads and downloads
+    final RateLimiter shareRequests;  // Download requests per second per share
+    final RateLimiter shareBandwidth; // Bytes per second per share
+    private final int uploadsPerMinute;
+    private volatile Predicate<HttpExchange> trustedProxies = exchange -> false;
+
+    public RateLimits(ServerConfig config, TimerWheel timerWheel) {
+        this.requests = new RateLimiter(config.ipRequestsPerSecond, 2 * config.ipRequestsPerSecond, timerWheel);
+        this.uploadsPerMinute = (int) config.uploadsPerMinute;
+        this.uploads = new RateLimiter(config.uploadsPerMinute / 60d, config.uploadsPerMinute, timerWheel);
+        // Byte buckets hold one second's worth, enough to absorb socket buffer bursts
+        this.ipBandwidth = new RateLimiter(config.ipBytesPerSecond, config.ipBytesPerSecond, timerWheel);
+        this.shareRequests = new RateLimiter(config.shareRequestsPerSecond, 2 * config.shareRequestsPerSecond, timerWheel);
+        this.shareBandwidth = new RateLimiter(config.shareBytesPerSecond, config.shareBytesPerSecond, timerWheel);
+    }
+
+    // Requests that pass this check are limited by the client address they
+    // carry in X-Forwarded-For rather than by the relay's own
+    public void trustForwardedFrom(Predicate<HttpExchange> relayed) {
+        this.trustedProxies = relayed;
+    }
+
+    String clientIp(HttpExchange exchange) {
+        InetAddress remote = exchange.getRemoteAddress().getAddress();
+        String forwardedFor = exchange.getRequestHeaders().getFirst(ClusterProxy.FORWARDED_FOR);
+        if (forwardedFor != null && trustedProxies.test(exchange)) {
+            return forwardedFor.trim();
+        }
+        return remote.getHostAddress();
+    }
+
+    // Take one request from the key's bucket, or answer 429 with a
+    // Retry-After and return false
+    static boolean admit(HttpExchange exchange, RateLimiter limiter, String key, String message)
+            throws IOException {
+        long wait = limiter.tryAcquire(key, 1);
+        if (wait == 0) {
+            return true;
+        }
+        long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999));
+        exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+        UploadHandler.refuseBody(exchange);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(429, message.getBytes().length); // 429 Too Many Requests
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(message.getBytes());
+        }
+        return false;
+    }
+
+    boolean admitRequest(HttpExchange exchange) throws IOException {
+        return admit(exchange, requests, clientIp(exchange), "Rate limit exceeded: too many requests");
+    }
+
+    boolean admitUpload(HttpExchange exchange) throws IOException {
+        return admit(exchange, uploads, clientIp(exchange),
+                "Rate limit exceeded: Max " + uploadsPerMinute + " uploads per minute.");
+    }
+
+    // The throttled streams hold their buckets until they are closed
+    InputStream throttleUpload(HttpExchange exchange) {
+        return new ThrottledInputStream(exchange.getRequestBody(), ipBandwidth.hold(clientIp(exchange)));
+    }
+
+    OutputStream throttleDownload(HttpExchange exchange, int shareId) {
+        return new ThrottledOutputStream(exchange.getResponseBody(),
+                ipBandwidth.hold(clientIp(exchange)), shareBandwidth.hold(String.valueOf(shareId)));
+    }
+}
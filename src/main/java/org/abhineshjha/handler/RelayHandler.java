@@ -0,0 +1,201 @@
+package org.abhineshjha.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.Share;
+import org.abhineshjha.utils.RelayBuffer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+// Live relay of one upload to one recipient, without storing it:
+//   POST /relay?name=<file>[&size=<bytes>]  create the share, returns port,
+//        [&expiresIn=<s>]                    token and the uploader's id
+//   PUT  /relay/<id>                         the file itself (raw body)
+// The recipient downloads from /download/<port>?token=<token> as usual, and
+// may connect before, during or after the PUT starts. The body passes
+// through a bounded RelayBuffer, so the upload runs at the recipient's pace
+// and the download at the uploader's. The PUT is answered once the
+// recipient has taken every byte.
+public class RelayHandler implements HttpHandler {
+    private static final String CONTEXT = "/relay";
+    private static final int RELAY_BUFFER_SIZE = 1024 * 1024; // Per relay, a few TCP windows' worth
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final FileSharer fileSharer;
+    private final RateLimits rateLimits;
+    private final long idleTimeoutMillis;
+    // Uploader id -> share id. The id is only given to the uploader, so a
+    // recipient, who knows the token, cannot take the uploader's place.
+    private final ConcurrentHashMap<String, Integer> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong relayedBytes = new AtomicLong();
+
+    public RelayHandler(FileSharer fileSharer, RateLimits rateLimits, long idleTimeoutMillis) {
+        this.fileSharer = fileSharer;
+        this.rateLimits = rateLimits;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Access-Control-Allow-Methods", "POST,PUT,OPTIONS");
+        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (method.equals("OPTIONS")) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        if (!rateLimits.admitRequest(exchange)) {
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+        if (path.startsWith("/")) path = path.substring(1);
+
+        try {
+            if (path.isEmpty() && method.equals("POST")) {
+                if (rateLimits.admitUpload(exchange)) {
+                    createRelay(exchange);
+                }
+            } else if (!path.isEmpty() && !path.contains("/") && method.equals("PUT")) {
+                relayUpload(exchange, path);
+            } else {
+                sendResponse(exchange, 405, "Method Not Allowed", "text/plain");
+            }
+        } catch (IllegalArgumentException ex) {
+            sendResponse(exchange, 400, "Bad request: " + ex.getMessage(), "text/plain");
+        } catch (IOException ex) {
+            System.err.println("Error relaying upload: " + ex.getMessage());
+            sendResponse(exchange, 500, "Server error: " + ex.getMessage(), "text/plain");
+        }
+    }
+
+    private void createRelay(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        String fileName = queryParam(query, "name");
+        if (fileName == null || fileName.trim().isEmpty()) {
+            sendResponse(exchange, 400, "Bad request: name is required", "text/plain");
+            return;
+        }
+        if (!UploadHandler.isAllowedExtension(fileName)) {
+            sendResponse(exchange, 415, "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv", "text/plain");
+            return;
+        }
+        String sizeParam = queryParam(query, "size");
+        long size = -1;
+        if (sizeParam != null) {
+            try {
+                size = Long.parseLong(sizeParam);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (size < 0) {
+                throw new IllegalArgumentException("invalid size");
+            }
+        }
+        long[] limits = UploadHandler.shareLimits(query);
+        if (limits[0] != 1) {
+            throw new IllegalArgumentException("a relay has exactly one recipient");
+        }
+
+        RelayBuffer relay = new RelayBuffer(RELAY_BUFFER_SIZE, size, idleTimeoutMillis);
+        int port = fileSharer.offerRelay(new File(fileName).getName(), relay, limits[1]);
+        String id = UUID.randomUUID().toString();
+        // Forget relays that expired before their upload came
+        uploads.values().removeIf(share -> !fileSharer.isPortAvailable(share));
+        uploads.put(id, port);
+        System.out.println("Relay share " + port + " created for " + fileName);
+
+        exchange.getResponseHeaders().add("Location", CONTEXT + "/" + id);
+        sendResponse(exchange, 201, "{\"port\": " + port + ", \"token\": \"" + fileSharer.getToken(port)
+                + "\", \"uploadId\": \"" + id + "\"}", "application/json");
+    }
+
+    private void relayUpload(HttpExchange exchange, String id) throws IOException {
+        // One uploader per relay: the id is used up here
+        Integer port = uploads.remove(id);
+        Share share = port == null ? null : fileSharer.getShare(port);
+        if (share == null || !share.isRelay() || !share.relay.attachWriter()) {
+            sendResponse(exchange, 404, "Relay not found", "text/plain");
+            return;
+        }
+        RelayBuffer relay = share.relay;
+        long declaredLength = UploadHandler.contentLength(exchange.getRequestHeaders());
+        if (relay.size >= 0 && declaredLength != Long.MAX_VALUE && declaredLength != relay.size) {
+            relay.fail("Upload size differs from the announced size");
+            throw new IllegalArgumentException("body is not the announced " + relay.size + " bytes");
+        }
+
+        long relayed = 0;
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream body = rateLimits.throttleUpload(exchange)) {
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                if (relay.size >= 0 && relayed + read > relay.size) {
+                    relay.fail("Upload longer than announced");
+                    throw new IllegalArgumentException("body is longer than the announced " + relay.size + " bytes");
+                }
+                try {
+                    relay.write(buffer, 0, read);
+                } catch (IOException ex) {
+                    // The recipient went away or never came
+                    sendResponse(exchange, 410, "Relay ended: " + ex.getMessage(), "text/plain"); // 410 Gone
+                    return;
+                }
+                relayed += read;
+                relayedBytes.addAndGet(read);
+            }
+        } catch (IOException ex) {
+            relay.fail("Uploader disconnected");
+            throw ex;
+        }
+        if (relay.size >= 0 && relayed != relay.size) {
+            relay.fail("Upload shorter than announced");
+            throw new IllegalArgumentException("body is shorter than the announced " + relay.size + " bytes");
+        }
+
+        relay.close();
+        if (!relay.awaitDrained()) {
+            sendResponse(exchange, 410, "Relay ended before the recipient had the whole file", "text/plain");
+            return;
+        }
+        sendResponse(exchange, 200, "{\"port\": " + port + ", \"relayed\": " + relayed + "}", "application/json");
+    }
+
+    public long relayedBytes() {
+        return relayedBytes.get();
+    }
+
+    private static String queryParam(String query, String name) {
+        if (query == null) return null;
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static void sendResponse(HttpExchange exchange, int status, String body, String contentType)
+            throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        if (status >= 400) {
+            UploadHandler.refuseBody(exchange);
+        }
+        exchange.sendResponseHeaders(status, body.getBytes().length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body.getBytes());
+        }
+    }
+}
@@ -1,262 +1,405 @@
-
-package org.abhineshjha.handler;
-
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.abhineshjha.service.FileSharer;
-import org.abhineshjha.utils.MultiParser;
-
-import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-
-public class UploadHandler implements HttpHandler {
-    private final String uploadDir;
-    private final FileSharer fileSharer;
-    // Maximum file size: 500MB
-    private static final long MAX_FILE_SIZE = 500L * 1024 * 1024; // 500MB in bytes
-
-    private static final int MAX_UPLOADS_PER_MINUTE = 10; // Maximum uploads allowed per minute
-    private static final long ONE_MINUTE_MS = 60_000; // One minute in milliseconds
-
-    // Allowed file extensions and MIME types (security whitelist)
-    private static final String[] ALLOWED_EXTENSIONS = {
-        ".txt", ".pdf", ".jpg", ".jpeg", ".png", ".gif", ".zip", ".doc", ".docx", ".csv"
-    };
-    private static final String[] ALLOWED_MIME_TYPES = {
-        "text/plain", "application/pdf", "image/jpeg", "image/png", "image/gif",
-        "application/zip", "application/x-zip-compressed", "application/x-zip", "application/octet-stream",
-        "application/msword", "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
-        "text/csv"
-    };
-
-    // This map keeps track of each IP's upload info
-    // Key: IP address, Value: UploadInfo object
-    private static final ConcurrentHashMap<String, UploadInfo> uploadTracker = new ConcurrentHashMap<>();
-
-    // This class stores info about uploads for one IP
-    private static class UploadInfo {
-        long minuteWindowStart; // When the current minute started
-        int uploadCount;        // How many uploads so far in this minute
-        UploadInfo(long minuteWindowStart) {
-            this.minuteWindowStart = minuteWindowStart;
-            this.uploadCount = 1;
-        }
-    }
-
-    public UploadHandler(String uploadDir, FileSharer fileSharer) {
-        this.uploadDir = uploadDir;
-        this.fileSharer = fileSharer;
-    }
-
-    // Helper method to check if file extension is allowed
-    private boolean isAllowedExtension(String filename) {
-        if (filename == null) return false;
-        String lower = filename.toLowerCase();
-        for (String ext : ALLOWED_EXTENSIONS) {
-            if (lower.endsWith(ext)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    // Helper method to check if MIME type is allowed
-    private boolean isAllowedMimeType(String mimeType) {
-        if (mimeType == null) return false;
-        for (String allowed : ALLOWED_MIME_TYPES) {
-            if (mimeType.toLowerCase().contains(allowed.toLowerCase())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    @Override
-    public void handle(HttpExchange exchange) throws IOException {
-        Headers headers = exchange.getResponseHeaders();
-        headers.add("Access-Control-Allow-Origin", "*");
-        headers.add("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
-        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
-
-        // Handle CORS preflight for this route
-        if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
-            exchange.sendResponseHeaders(204, -1);
-            return;
-        }
-
-        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-            String response = "Method Not Allowed";
-            exchange.sendResponseHeaders(405, response.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
-            }
-            return;
-        }
-
-        // Get the user's IP address
-        String userIp = exchange.getRemoteAddress().getAddress().getHostAddress();
-        long currentTime = System.currentTimeMillis();
-
-        // Look up this IP in our tracker map
-        UploadInfo info = uploadTracker.get(userIp);
-
-        if (info == null) {
-            // First upload from this IP, start a new minute window
-            info = new UploadInfo(currentTime);
-            uploadTracker.put(userIp, info);
-        } else if (currentTime - info.minuteWindowStart > ONE_MINUTE_MS) {
-            // It's a new minute, reset the counter
-            info.minuteWindowStart = currentTime;
-            info.uploadCount = 1;
-        } else {
-            // Still in the same minute, increase the count
-            info.uploadCount++;
-            if (info.uploadCount > MAX_UPLOADS_PER_MINUTE) {
-                // Too many uploads! Block this request
-                String response = "Rate limit exceeded: Max " + MAX_UPLOADS_PER_MINUTE + " uploads per minute.";
-                exchange.sendResponseHeaders(429, response.getBytes().length); // 429 Too Many Requests
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-        }
-
-        Headers requestHeaders = exchange.getRequestHeaders();
-        // ...existing code...
-        String contentType = null;
-        for (String key : requestHeaders.keySet()) {
-            if (key != null && key.equalsIgnoreCase("Content-Type")) {
-                contentType = requestHeaders.getFirst(key);
-                break;
-            }
-        }
-        if (contentType == null || !contentType.startsWith("multipart/form-data")) {
-            String response = "Bad Request: Content-Type must be multipart/form-data";
-            exchange.sendResponseHeaders(400, response.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
-            }
-            return;
-        }
-
-        try {
-            int bIdx = contentType.toLowerCase().indexOf("boundary=");
-            if (bIdx == -1) {
-                String response = "Bad Request: boundary missing in Content-Type";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-            String boundary = contentType.substring(bIdx + 9).trim();
-            int scIdx = boundary.indexOf(';');
-            if (scIdx != -1) boundary = boundary.substring(0, scIdx).trim();
-            if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
-                boundary = boundary.substring(1, boundary.length() - 1);
-            }
-            
-            // Check 2: Read request body with size limit (second line of defense)
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalBytesRead = 0;
-            
-            while ((bytesRead = exchange.getRequestBody().read(buffer)) != -1) {
-                totalBytesRead += bytesRead;
-                if (totalBytesRead > MAX_FILE_SIZE) {
-                    String response = "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB";
-                    exchange.sendResponseHeaders(413, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
-                    }
-                    return;
-                }
-                baos.write(buffer, 0, bytesRead);
-            }
-            byte[] requestData = baos.toByteArray();
-
-            MultiParser multiParser = new MultiParser(requestData, boundary);
-            MultiParser.ParseResult result = multiParser.parse();
-
-            if (result == null) {
-                String response = "Bad request: Could not parse file content";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-            
-            // Check 3: Validate actual file content size (third line of defense)
-            if (result.fileContent != null && result.fileContent.length > MAX_FILE_SIZE) {
-                String response = "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB";
-                exchange.sendResponseHeaders(413, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-
-            String filename = result.fileName;
-            if (filename == null || filename.trim().isEmpty()) {
-                filename = "unnamed-file.txt";
-            }
-            
-            // Check 4: Validate file extension (block executables and malicious files)
-            if (!isAllowedExtension(filename)) {
-                String response = "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv";
-                exchange.sendResponseHeaders(415, response.getBytes().length); // 415 Unsupported Media Type
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-            
-            // Check 5: Validate MIME type from multipart Content-Type (extra safety layer)
-            String fileMimeType = result.contentType;
-            if (!isAllowedMimeType(fileMimeType)) {
-                String response = "MIME type not allowed. Allowed types: text/plain, application/pdf, image/jpeg, image/png, image/gif, application/zip, application/octet-stream, application/msword, text/csv";
-                exchange.sendResponseHeaders(415, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
-                }
-                return;
-            }
-            
-            String uniqueFileName = UUID.randomUUID() + "_" + new File(filename).getName();
-            String filePath = uploadDir + File.separator + uniqueFileName;
-
-            try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                fos.write(result.fileContent);
-            }
-
-            int port = fileSharer.offerFile(filePath);
-            String token = fileSharer.getToken(port); // Get the access token
-            new Thread(() -> fileSharer.startFileServer(port)).start();
-
-            // Return both port and token in JSON response
-            String jsonResponse = "{\"port\": " + port + ", \"token\": \"" + token + "\"}";
-            headers.add("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(jsonResponse.getBytes());
-            }
-        } catch (IOException ex) {
-            System.err.println("Error processing file upload: " + ex.getMessage());
-            String response = "Server error: " + ex.getMessage();
-            exchange.sendResponseHeaders(500, response.getBytes().length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
-            }
-        }
-    }
-}
+
+package org.abhineshjha.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.abhineshjha.service.BlobStore;
+import org.abhineshjha.service.FileSharer;
+import org.abhineshjha.service.GzipVariants;
+import org.abhineshjha.service.HotFileCache;
+import org.abhineshjha.service.Share;
+import org.abhineshjha.service.StorageManager;
+import org.abhineshjha.utils.BufferPool;
+import org.abhineshjha.utils.MultiParser;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class UploadHandler implements HttpHandler {
+    private final BlobStore blobStore;
+    private final FileSharer fileSharer;
+    private final RateLimits rateLimits;
+    private final GzipVariants gzipVariants;
+    private final HotFileCache hotFileCache;
+    private final StorageManager storageManager;
+    // Maximum file size: 500MB
+    static final long MAX_FILE_SIZE = 500L * 1024 * 1024; // 500MB in bytes
+    // Room for boundaries and part headers on top of the file bytes
+    static final long MAX_MULTIPART_OVERHEAD = 1024 * 1024;
+    // Form fields next to the files are not used; all of them together may not be large
+    private static final long MAX_FIELD_SIZE = 64 * 1024;
+    // Retry-After when all upload buffers are taken
+    private static final long BUSY_RETRY_SECONDS = 5;
+    // Recipients one share can be limited to
+    static final int MAX_DOWNLOADS = 100_000;
+
+    // Allowed file extensions and MIME types (security whitelist)
+    private static final String[] ALLOWED_EXTENSIONS = {
+        ".txt", ".pdf", ".jpg", ".jpeg", ".png", ".gif", ".zip", ".doc", ".docx", ".csv"
+    };
+    private static final String[] ALLOWED_MIME_TYPES = {
+        "text/plain", "application/pdf", "image/jpeg", "image/png", "image/gif",
+        "application/zip", "application/x-zip-compressed", "application/x-zip", "application/octet-stream",
+        "application/msword", "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+        "text/csv"
+    };
+
+    public UploadHandler(BlobStore blobStore, FileSharer fileSharer, RateLimits rateLimits,
+                         GzipVariants gzipVariants, HotFileCache hotFileCache, StorageManager storageManager) {
+        this.blobStore = blobStore;
+        this.fileSharer = fileSharer;
+        this.rateLimits = rateLimits;
+        this.gzipVariants = gzipVariants;
+        this.hotFileCache = hotFileCache;
+        this.storageManager = storageManager;
+    }
+
+    // Helper method to check if file extension is allowed
+    static boolean isAllowedExtension(String filename) {
+        if (filename == null) return false;
+        String lower = filename.toLowerCase();
+        for (String ext : ALLOWED_EXTENSIONS) {
+            if (lower.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Helper method to check if MIME type is allowed
+    static boolean isAllowedMimeType(String mimeType) {
+        if (mimeType == null) return false;
+        for (String allowed : ALLOWED_MIME_TYPES) {
+            if (mimeType.toLowerCase().contains(allowed.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Access-Control-Allow-Methods", "GET,POST,OPTIONS");
+        headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+
+        // Handle CORS preflight for this route
+        if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            sendText(exchange, 405, "Method Not Allowed");
+            return;
+        }
+
+        // Per-IP request rate, then the stricter budget for new uploads
+        if (!rateLimits.admitRequest(exchange) || !rateLimits.admitUpload(exchange)) {
+            return;
+        }
+
+        Headers requestHeaders = exchange.getRequestHeaders();
+        // ...existing code...
+        String contentType = null;
+        for (String key : requestHeaders.keySet()) {
+            if (key != null && key.equalsIgnoreCase("Content-Type")) {
+                contentType = requestHeaders.getFirst(key);
+                break;
+            }
+        }
+        if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+            sendText(exchange, 400, "Bad Request: Content-Type must be multipart/form-data");
+            return;
+        }
+
+        // Everything that can be judged from the headers is, before a byte of
+        // the body is read: an oversized upload fails here and not 500MB later
+        long declaredLength = contentLength(requestHeaders);
+        if (declaredLength != Long.MAX_VALUE && declaredLength > MAX_FILE_SIZE + MAX_MULTIPART_OVERHEAD) {
+            sendText(exchange, 413, "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB");
+            return;
+        }
+
+        long[] limits;
+        try {
+            limits = shareLimits(exchange.getRequestURI().getQuery());
+        } catch (IllegalArgumentException ex) {
+            sendText(exchange, 400, "Bad request: " + ex.getMessage());
+            return;
+        }
+
+        StorageManager.Reservation reservation = null;
+        InputStream body = null;
+        try {
+            int bIdx = contentType.toLowerCase().indexOf("boundary=");
+            if (bIdx == -1) {
+                sendText(exchange, 400, "Bad Request: boundary missing in Content-Type");
+                return;
+            }
+            String boundary = contentType.substring(bIdx + 9).trim();
+            int scIdx = boundary.indexOf(';');
+            if (scIdx != -1) boundary = boundary.substring(0, scIdx).trim();
+            if (boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            
+            // Stream the body through the parser instead of buffering it in memory.
+            // Every file part is stored; several files are shared together as one
+            // bundle under a single token.
+            body = rateLimits.throttleUpload(exchange);
+            MultiParser multiParser = new MultiParser(body, boundary);
+            List<Share.Entry> files = new ArrayList<>();
+            Set<String> names = new HashSet<>();
+            long remaining = MAX_FILE_SIZE; // The limit applies to all files together
+            long fieldBytes = 0;            // And MAX_FIELD_SIZE to all fields together
+            boolean shared = false;
+            try {
+                MultiParser.Part part;
+                while ((part = multiParser.nextPart()) != null) {
+                    if (part.fileName == null) {
+                        try {
+                            fieldBytes += multiParser.transferPart(OutputStream.nullOutputStream(),
+                                    MAX_FIELD_SIZE - fieldBytes);
+                        } catch (MultiParser.PartTooLargeException ex) {
+                            sendText(exchange, 413, "Form field too large");
+                            return;
+                        }
+                        continue;
+                    }
+                    String filename = part.fileName;
+                    if (filename.trim().isEmpty()) {
+                        filename = "unnamed-file.txt";
+                    }
+
+                    // Check 2: Validate file extension (block executables and malicious files)
+                    if (!isAllowedExtension(filename)) {
+                        sendText(exchange, 415, "File type not allowed. Allowed extensions: .txt, .pdf, .jpg, .jpeg, .png, .gif, .zip, .doc, .docx, .csv"); // 415 Unsupported Media Type
+                        return;
+                    }
+
+                    // Check 3: Validate MIME type from multipart Content-Type (extra safety layer)
+                    if (!isAllowedMimeType(part.contentType)) {
+                        sendText(exchange, 415, "MIME type not allowed. Allowed types: text/plain, application/pdf, image/jpeg, image/png, image/gif, application/zip, application/octet-stream, application/msword, text/csv");
+                        return;
+                    }
+
+                    // Claim disk space for the whole body once the first file is
+                    // known to be acceptable, before any of its bytes are read.
+                    // The declared length bounds what can be stored; without one
+                    // the size limit does. The claim only keeps other uploads
+                    // out; stored shares are evicted for the bytes actually
+                    // received, as they are written.
+                    if (reservation == null) {
+                        try {
+                            reservation = storageManager.reserve(Math.min(declaredLength, MAX_FILE_SIZE));
+                        } catch (StorageManager.StorageFullException ex) {
+                            sendStorageFull(exchange, ex);
+                            return;
+                        }
+                    }
+
+                    // Check 4: Enforce the size limit while the part is hashed and written to disk
+                    BlobStore.BlobWriter writer = blobStore.newWriter();
+                    try (writer) {
+                        remaining -= multiParser.transferPart(reservation.track(writer), remaining);
+                    } catch (MultiParser.PartTooLargeException ex) {
+                        writer.discard();
+                        sendText(exchange, 413, "File too large: Maximum file size is " + (MAX_FILE_SIZE / (1024 * 1024)) + "MB");
+                        return;
+                    } catch (StorageManager.StorageFullException ex) {
+                        writer.discard();
+                        sendStorageFull(exchange, ex);
+                        return;
+                    } catch (IOException ex) {
+                        writer.discard();
+                        throw ex;
+                    }
+
+                    // Identical content already in the store is reused instead of
+                    // written twice; either way its bytes no longer count as in flight
+                    String digest = blobStore.commit(writer);
+                    reservation.release();
+                    files.add(new Share.Entry(uniqueName(entryName(filename), names),
+                            blobStore.blobFile(digest).getPath(), digest, writer.size(), writer.crc32()));
+                }
+
+                if (files.isEmpty()) {
+                    sendText(exchange, 400, "Bad request: Could not parse file content");
+                    return;
+                }
+
+                int port;
+                int maxDownloads = (int) limits[0];
+                if (files.size() == 1) {
+                    Share.Entry file = files.get(0);
+                    port = fileSharer.offerBlob(file.digest, new File(file.name).getName(), maxDownloads, limits[1]);
+                    gzipVariants.prepare(file.digest, file.name);
+                    hotFileCache.offer(file.digest, blobStore.blobFile(file.digest));
+                } else {
+                    port = fileSharer.offerBundle(bundleName(files), files, maxDownloads, limits[1]);
+                }
+                shared = true;
+                String token = fileSharer.getToken(port); // Get the access token
+
+                // Return port and token in JSON response, and for a single file the
+                // SHA-256 taken while it streamed in, to check a download against
+                String jsonResponse = "{\"port\": " + port + ", \"token\": \"" + token
+                        + "\", \"files\": " + files.size() + ", \"maxDownloads\": " + maxDownloads
+                        + (files.size() == 1 ? ", \"sha256\": \"" + files.get(0).digest + "\"" : "") + "}";
+                headers.add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(jsonResponse.getBytes());
+                }
+            } finally {
+                // A rejected or failed request keeps none of its files
+                if (!shared) {
+                    for (Share.Entry file : files) {
+                        blobStore.release(file.digest);
+                    }
+                }
+            }
+        } catch (MultiParser.MultipartException ex) {
+            sendText(exchange, 400, "Bad request: " + ex.getMessage());
+        } catch (BufferPool.ExhaustedException ex) {
+            headers.add("Retry-After", String.valueOf(BUSY_RETRY_SECONDS));
+            sendText(exchange, 503, "Server busy: " + ex.getMessage());
+        } catch (IOException ex) {
+            System.err.println("Error processing file upload: " + ex.getMessage());
+            sendText(exchange, 500, "Server error: " + ex.getMessage());
+        } finally {
+            // Committed blobs are counted by the store from here on
+            if (reservation != null) {
+                reservation.close();
+            }
+            // Only once the reply is out, so closing never drains the body first
+            if (body != null) {
+                body.close();
+            }
+        }
+    }
+
+    // Declared body length, or Long.MAX_VALUE if absent or malformed
+    static long contentLength(Headers requestHeaders) {
+        String value = requestHeaders.getFirst("Content-Length");
+        try {
+            return value == null ? Long.MAX_VALUE : Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    // For error replies that leave some of the request body unread. The
+    // server drains up to 64KB of it and then drops the connection anyway;
+    // saying so up front tells the client to stop sending right away.
+    static void refuseBody(HttpExchange exchange) {
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String length = requestHeaders.getFirst("Content-Length");
+        if (requestHeaders.getFirst("Transfer-Encoding") != null || length != null && !length.trim().equals("0")) {
+            exchange.getResponseHeaders().set("Connection", "close");
+        }
+    }
+
+    // 503 while uploads in progress hold the space, 507 Insufficient Storage
+    // otherwise; both with a Retry-After unless waiting cannot help
+    static void sendStorageFull(HttpExchange exchange, StorageManager.StorageFullException ex) throws IOException {
+        if (ex.retryAfterSeconds > 0) {
+            exchange.getResponseHeaders().add("Retry-After", String.valueOf(ex.retryAfterSeconds));
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/plain");
+        sendText(exchange, ex.temporary ? 503 : 507, ex.getMessage());
+    }
+
+    // Download limits asked for in the query string: maxDownloads recipients
+    // (default 1, 0 for no limit) and expiresIn seconds (default none, the
+    // server-wide TTL still applies). Returns {maxDownloads, ttlMillis}.
+    static long[] shareLimits(String query) {
+        long maxDownloads = 1;
+        long ttlMillis = 0;
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("maxDownloads=")) {
+                    maxDownloads = parseLimit(param.substring(13), MAX_DOWNLOADS, "maxDownloads");
+                } else if (param.startsWith("expiresIn=")) {
+                    ttlMillis = parseLimit(param.substring(10), Long.MAX_VALUE / 1000, "expiresIn") * 1000;
+                }
+            }
+        }
+        return new long[] {maxDownloads, ttlMillis};
+    }
+
+    private static long parseLimit(String value, long max, String name) {
+        long parsed;
+        try {
+            parsed = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            parsed = -1;
+        }
+        if (parsed < 0 || parsed > max) {
+            throw new IllegalArgumentException("invalid " + name);
+        }
+        return parsed;
+    }
+
+    // Path of an uploaded file inside a bundle. Browsers send folder uploads
+    // as relative paths; anything that could climb out of the archive root
+    // (absolute paths, drive letters, "..") is dropped.
+    static String entryName(String filename) {
+        StringBuilder name = new StringBuilder();
+        for (String segment : filename.replace('\\', '/').split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.endsWith(":")) {
+                continue;
+            }
+            if (name.length() > 0) name.append('/');
+            name.append(segment);
+        }
+        return name.length() == 0 ? "unnamed-file.txt" : name.toString();
+    }
+
+    // ZIP entries must be unique: "a.txt", "a (2).txt", "a (3).txt", ...
+    static String uniqueName(String name, Set<String> taken) {
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf('/')) dot = name.length();
+        for (int n = 2; !taken.add(candidate); n++) {
+            candidate = name.substring(0, dot) + " (" + n + ")" + name.substring(dot);
+        }
+        return candidate;
+    }
+
+    // A folder upload is named after the folder, anything else "files.zip"
+    static String bundleName(List<Share.Entry> files) {
+        String first = files.get(0).name;
+        int slash = first.indexOf('/');
+        if (slash > 0) {
+            String folder = first.substring(0, slash + 1);
+            boolean common = true;
+            for (Share.Entry file : files) {
+                common &= file.name.startsWith(folder);
+            }
+            if (common) {
+                return first.substring(0, slash) + ".zip";
+            }
+        }
+        return "files.zip";
+    }
+
+    // Error replies; the body may not have been read to the end
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException {
+        refuseBody(exchange);
+        exchange.sendResponseHeaders(status, response.getBytes().length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response.getBytes());
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.abhineshjha.utils.BufferPool;
+import org.abhineshjha.utils.ServerConfig;
+
+// Content-addressed storage under uploadDir/blobs. Each distinct content is
+// stored once, named by its SHA-256, and reference counted by the shares that
+// point at it. Uploads are hashed while they are written, so identifying a
+// duplicate costs no second pass over the data. A blob may have a gzip
+// variant next to it ("<digest>.gz"), which goes away with the blob.
+public class BlobStore {
+    private static final String VARIANT_SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFERS = 1024;     // 64MB of upload data in flight at most
+    private static final int PIPELINE_DEPTH = 4;     // Full buffers queued per blob
+    private static final long BUFFER_WAIT_MILLIS = 10_000; // Then the upload is refused as busy
+    private static final long FSYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final File blobDir;
+    private final File incomingDir;
+    private final ConcurrentHashMap<String, Integer> refCounts = new ConcurrentHashMap<>();
+    // Bytes of blobs and variants, kept up to date as they come and go so
+    // quota checks never list the directory
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final ServerConfig.FsyncPolicy fsyncPolicy;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_BUFFERS, BUFFER_WAIT_MILLIS);
+    private volatile Consumer<String> removalListener = digest -> { };
+
+    public BlobStore(String uploadDir) {
+        this(uploadDir, ServerConfig.FsyncPolicy.NONE);
+    }
+
+    public BlobStore(String uploadDir, ServerConfig.FsyncPolicy fsyncPolicy) {
+        this.blobDir = new File(uploadDir, "blobs");
+        this.incomingDir = new File(blobDir, "incoming");
+        this.fsyncPolicy = fsyncPolicy;
+        incomingDir.mkdirs();
+        // One listing at startup; from here on the count is incremental
+        File[] files = blobDir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isFile()) {
+                storedBytes.addAndGet(file.length());
+            }
+        }
+    }
+
+    // Output stream that writes to a temp file and hashes everything written.
+    // A CRC-32 is taken on the way too, for ZIP entries built from the blob.
+    // Writes are pipelined: the caller only copies into pooled buffers, and a
+    // writer thread per blob hashes them and writes them to disk, so reading
+    // the next bytes from the network overlaps with storing the last ones.
+    // At most PIPELINE_DEPTH full buffers wait for the writer thread.
+    public class BlobWriter extends OutputStream {
+        private final File tempFile;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private final CRC32 crc = new CRC32();
+        private final ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        private byte[] current;
+        private int fill;
+        private Thread writerThread;
+        private long lastForce = System.nanoTime();
+        private volatile IOException failure;
+        private volatile boolean aborted;
+        private long size;
+        private boolean closed;
+
+        private BlobWriter() throws IOException {
+            this.tempFile = newIncomingFile(".tmp");
+            this.channel = FileChannel.open(tempFile.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.digest = newDigest();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (closed) {
+                throw new IOException("Blob writer is closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (current == null) {
+                current = bufferPool.acquire();
+            }
+            current[fill++] = (byte) b;
+            size++;
+            if (fill == current.length) {
+                handOff();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Blob writer is closed");
+            }
+            while (len > 0) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (current == null) {
+                    current = bufferPool.acquire();
+                }
+                int count = Math.min(len, current.length - fill);
+                System.arraycopy(b, off, current, fill, count);
+                fill += count;
+                off += count;
+                len -= count;
+                size += count;
+                if (fill == current.length) {
+                    handOff();
+                }
+            }
+        }
+
+        // Queue the current buffer for the writer thread, starting it on first use
+        private void handOff() throws IOException {
+            if (writerThread == null) {
+                writerThread = Thread.ofVirtual().name("blob-writer").start(this::drain);
+            }
+            put(new Chunk(current, fill));
+            current = null;
+            fill = 0;
+        }
+
+        private void put(Chunk chunk) throws IOException {
+            try {
+                queue.put(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted writing blob");
+            }
+        }
+
+        // Writer thread: store chunks until END. After a failure the rest
+        // are only returned to the pool.
+        private void drain() {
+            while (true) {
+                Chunk chunk;
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    failure = new InterruptedIOException("Blob writer interrupted");
+                    return;
+                }
+                if (chunk == END) {
+                    return;
+                }
+                if (failure == null && !aborted) {
+                    try {
+                        store(chunk.buffer, chunk.length);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                bufferPool.release(chunk.buffer);
+            }
+        }
+
+        private void store(byte[] buffer, int length) throws IOException {
+            digest.update(buffer, 0, length);
+            crc.update(buffer, 0, length);
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            if (fsyncPolicy == ServerConfig.FsyncPolicy.PERIODIC
+                    && System.nanoTime() - lastForce >= FSYNC_INTERVAL_NANOS) {
+                channel.force(false);
+                lastForce = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (writerThread == null) {
+                    // Fits in one buffer: not worth a thread
+                    if (current != null) {
+                        try {
+                            if (!aborted) {
+                                store(current, fill);
+                            }
+                        } finally {
+                            bufferPool.release(current);
+                            current = null;
+                        }
+                    }
+                } else {
+                    if (current != null && !aborted) {
+                        handOff();
+                    }
+                    put(END);
+                    try {
+                        writerThread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for blob writer");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (!aborted && fsyncPolicy != ServerConfig.FsyncPolicy.NONE) {
+                    channel.force(false);
+                }
+            } finally {
+                // A buffer the writer thread never got, after an abort or a
+                // failed hand-off, goes straight back to the pool
+                if (current != null) {
+                    bufferPool.release(current);
+                    current = null;
+                }
+                channel.close();
+            }
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public long crc32() {
+            return crc.getValue();
+        }
+
+        // Drop the temp file, e.g. after a rejected or failed upload
+        public void discard() {
+            aborted = true;
+            try {
+                close();
+            } catch (IOException e) {
+                System.err.println("Error closing blob writer " + e.getMessage());
+            }
+            tempFile.delete();
+        }
+    }
+
+    // A filled buffer on its way to the writer thread
+    private static class Chunk {
+        final byte[] buffer;
+        final int length;
+
+        Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    public BlobWriter newWriter() throws IOException {
+        return new BlobWriter();
+    }
+
+    // Upload buffers not handed out
+    int availableBuffers() {
+        return bufferPool.available();
+    }
+
+    // Move the written content into the store (or drop it if identical
+    // content is already stored) and take one reference. Returns the digest.
+    public String commit(BlobWriter writer) throws IOException {
+        writer.close();
+        String digest = HexFormat.of().formatHex(writer.digest.digest());
+        commit(writer.tempFile, digest);
+        return digest;
+    }
+
+    // Hash an existing file in one pass and move it into the store
+    public String commitFile(File file) throws IOException {
+        return commitFile(file, null, 0);
+    }
+
+    // Move a chunked upload's file into the store. digest already holds the
+    // file's first `hashed` bytes, taken as in-order chunks were written, so
+    // only the rest is read back; with a null digest the whole file is.
+    public String commitFile(File file, MessageDigest digest, long hashed) throws IOException {
+        if (digest == null) {
+            digest = newDigest();
+            hashed = 0;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            in.skipNBytes(hashed);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        if (fsyncPolicy != ServerConfig.FsyncPolicy.NONE) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        String hex = HexFormat.of().formatHex(digest.digest());
+        commit(file, hex);
+        return hex;
+    }
+
+    private void commit(File source, String digest) throws IOException {
+        IOException[] failure = new IOException[1];
+        refCounts.compute(digest, (key, count) -> {
+            File blob = blobFile(key);
+            try {
+                if (count == null && !blob.exists()) {
+                    long length = source.length();
+                    Files.move(source.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    storedBytes.addAndGet(length);
+                    return 1;
+                }
+                // Same content already stored: keep one copy
+                Files.deleteIfExists(source.toPath());
+                System.out.println("Deduplicated upload into blob " + key);
+                return count == null ? 1 : count + 1;
+            } catch (IOException e) {
+                failure[0] = e;
+                return count;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    // Take another reference on a stored blob, e.g. when restoring shares
+    public void retain(String digest) {
+        refCounts.merge(digest, 1, Integer::sum);
+    }
+
+    // Digests of all blobs currently on disk, from a single directory listing
+    public Set<String> storedDigests() {
+        Set<String> digests = new HashSet<>();
+        String[] names = blobDir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.equals(incomingDir.getName()) && !name.endsWith(VARIANT_SUFFIX)) {
+                    digests.add(name);
+                }
+            }
+        }
+        return digests;
+    }
+
+    // Delete blobs that no share references, their variants, and leftover
+    // temp files from interrupted uploads or compressions. Only safe before
+    // the server accepts uploads.
+    public int deleteUnreferenced() {
+        int deleted = 0;
+        String[] names = blobDir.list();
+        for (String name : names == null ? new String[0] : names) {
+            String digest = name.endsWith(VARIANT_SUFFIX)
+                    ? name.substring(0, name.length() - VARIANT_SUFFIX.length()) : name;
+            File file = new File(blobDir, name);
+            long length = file.length();
+            if (!name.equals(incomingDir.getName()) && !refCounts.containsKey(digest) && file.delete()) {
+                storedBytes.addAndGet(-length);
+                deleted++;
+            }
+        }
+        File[] incoming = incomingDir.listFiles();
+        if (incoming != null) {
+            for (File file : incoming) {
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // Drop one reference; the blob is deleted with its last reference
+    public void release(String digest) {
+        boolean[] deleted = new boolean[1];
+        refCounts.computeIfPresent(digest, (key, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            File blob = blobFile(key);
+            long length = blob.length();
+            if (blob.delete()) {
+                storedBytes.addAndGet(-length);
+                System.out.println("Blob deleted after last share: " + key);
+            } else {
+                System.err.println("Failed to delete blob: " + key);
+            }
+            File variant = variantFile(key);
+            length = variant.length();
+            if (variant.delete()) {
+                storedBytes.addAndGet(-length);
+            }
+            deleted[0] = true;
+            return null;
+        });
+        if (deleted[0]) {
+            removalListener.accept(digest);
+        }
+    }
+
+    // Move a finished gzip variant next to its blob. Returns false, leaving
+    // the temp file alone, if the blob was released meanwhile. Runs under
+    // the blob's entry lock, so release() sees either no variant or all of it.
+    public boolean commitVariant(String digest, File tempFile) throws IOException {
+        IOException[] failure = new IOException[1];
+        boolean[] moved = new boolean[1];
+        refCounts.computeIfPresent(digest, (key, count) -> {
+            long length = tempFile.length();
+            try {
+                Files.move(tempFile.toPath(), variantFile(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+                storedBytes.addAndGet(length);
+                moved[0] = true;
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+            return count;
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return moved[0];
+    }
+
+    // Called with the digest of every blob deleted by release(), e.g. to
+    // drop cached copies
+    public void setRemovalListener(Consumer<String> listener) {
+        this.removalListener = listener;
+    }
+
+    public File blobFile(String digest) {
+        return new File(blobDir, digest);
+    }
+
+    public File variantFile(String digest) {
+        return new File(blobDir, digest + VARIANT_SUFFIX);
+    }
+
+    // True while at least one share references the blob
+    public boolean isStored(String digest) {
+        return refCounts.containsKey(digest);
+    }
+
+    // Fresh temp file in the incoming directory, on the same file system as
+    // the blobs so it can be renamed into place atomically
+    public File newIncomingFile(String suffix) {
+        return new File(incomingDir, UUID.randomUUID() + suffix);
+    }
+
+    public int blobCount() {
+        return refCounts.size();
+    }
+
+    // Bytes held by stored blobs and their variants
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    // Bytes held by uploads and compressions still being written
+    public long incomingBytes() {
+        long total = 0;
+        File[] files = incomingDir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
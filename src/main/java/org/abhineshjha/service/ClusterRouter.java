@@ -0,0 +1,151 @@
+package org.abhineshjha.service;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Share ownership across a static list of nodes. Each node is placed on a
+// 64-bit hash ring at VIRTUAL_NODES points, and a token belongs to the
+// first node at or after the token's own position. Adding or removing a
+// node therefore moves only the tokens next to its points, about 1/N of
+// them. A node only hands out tokens it owns, so the node that took an
+// upload is the one every other node sends its downloads to.
+public class ClusterRouter {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<URI> peers;
+    private final int self;         // Index of this node in peers, -1 outside a cluster
+    private final long[] positions; // Sorted ring positions
+    private final int[] owners;     // Peer index at each position
+    private final Set<String> peerAddresses = new HashSet<>();
+
+    // A single node that owns everything
+    public ClusterRouter() {
+        this.peers = List.of();
+        this.self = -1;
+        this.positions = new long[0];
+        this.owners = new int[0];
+    }
+
+    // peerList: comma-separated base URLs of all nodes, the same on every
+    // node. selfUrl: this node's entry in that list.
+    public ClusterRouter(String peerList, String selfUrl) {
+        List<URI> parsed = new ArrayList<>();
+        for (String peer : peerList.split(",")) {
+            if (!peer.isBlank()) {
+                parsed.add(normalize(peer));
+            }
+        }
+        this.peers = List.copyOf(parsed);
+        this.self = peers.indexOf(normalize(selfUrl));
+        if (self == -1) {
+            throw new IllegalArgumentException("Cluster peer list " + peerList + " does not contain " + selfUrl);
+        }
+
+        long[][] points = new long[peers.size() * VIRTUAL_NODES][];
+        for (int peer = 0; peer < peers.size(); peer++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points[peer * VIRTUAL_NODES + i] = new long[] {hash(peers.get(peer) + "#" + i), peer};
+            }
+        }
+        Arrays.sort(points, (a, b) -> Long.compare(a[0], b[0]));
+        this.positions = new long[points.length];
+        this.owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            positions[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+
+        // Requests relayed by a peer carry the client's address; only peers may say so
+        for (URI peer : peers) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(peer.getHost())) {
+                    peerAddresses.add(address.getHostAddress());
+                }
+            } catch (UnknownHostException e) {
+                System.err.println("Cannot resolve cluster peer " + peer + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isClustered() {
+        return self != -1;
+    }
+
+    // Index of the node owning the token, or -1 for a malformed token
+    public int ownerOf(String token) {
+        long key = ShareRegistry.decode(token);
+        return key == -1 ? -1 : ownerOf(key);
+    }
+
+    int ownerOf(long key) {
+        if (!isClustered()) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(positions, position(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Past the last point the ring wraps around to the first
+        return owners[index == positions.length ? 0 : index];
+    }
+
+    // True for tokens this node hands out; used as FileSharer's token filter
+    public boolean owns(long key) {
+        return !isClustered() || ownerOf(key) == self;
+    }
+
+    // The owning node's base URL, or null if this node owns the token
+    public URI remoteOwner(String token) {
+        int owner = ownerOf(token);
+        return owner == -1 || owner == self ? null : peers.get(owner);
+    }
+
+    public boolean isPeer(InetAddress address) {
+        return peerAddresses.contains(address.getHostAddress());
+    }
+
+    public int size() {
+        return Math.max(1, peers.size());
+    }
+
+    private static URI normalize(String url) {
+        String trimmed = url.trim();
+        while (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return URI.create(trimmed);
+    }
+
+    // Tokens are random already; the finalizer of MurmurHash3 spreads their
+    // 60 bits over the whole ring
+    private static long position(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static long hash(String point) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(point.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -1,152 +1,399 @@
-package org.abhineshjha.service;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-
-import org.abhineshjha.utils.UploadUtils;
-
-public class FileSharer {
-    private final ConcurrentHashMap<Integer,String> availableFiles;
-    private final ConcurrentHashMap<Integer,String> accessTokens; // Port -> Token mapping
-
-    public FileSharer(){
-        availableFiles = new ConcurrentHashMap<>();
-        accessTokens = new ConcurrentHashMap<>();
-    }
-
-    // Generate a random 6-digit PIN
-    private String generateAccessToken() {
-        Random random = new Random();
-        int pin = 100000 + random.nextInt(900000); // 6-digit PIN (100000-999999)
-        return String.valueOf(pin);
-    }
-
-    public int offerFile(String filePath) {
-        int port;
-        while (true) {
-            port = UploadUtils.generatePort();
-            if (!availableFiles.containsKey(port)) {
-                availableFiles.put(port,filePath);
-                // Generate and store access token for this port
-                String token = generateAccessToken();
-                accessTokens.put(port, token);
-                return port;
-            }
-        }
-    }
-    
-    public boolean isPortAvailable(int port) {
-        return availableFiles.containsKey(port);
-    }
-    
-    // Validate token for a given port
-    public boolean validateToken(int port, String token) {
-        if (token == null || !accessTokens.containsKey(port)) {
-            return false;
-        }
-        return accessTokens.get(port).equals(token);
-    }
-    
-    // Get token for a given port (used to return in upload response)
-    public String getToken(int port) {
-        return accessTokens.get(port);
-    }
-    
-    // Find port by token
-    public Integer getPortByToken(String token) {
-        for (var entry : accessTokens.entrySet()) {
-            if (entry.getValue().equals(token)) {
-                return entry.getKey();
-            }
-        }
-        return null;
-    }
-    
-    // Get file path for a given port
-    public String getFilePath(int port) {
-        return availableFiles.get(port);
-    }
-    
-    // Cleanup file after successful download
-    public void cleanupAfterDownload(int port) {
-        String filePath = availableFiles.get(port);
-        if (filePath != null) {
-            // Delete the physical file
-            File file = new File(filePath);
-            if (file.exists()) {
-                if (file.delete()) {
-                    System.out.println("File deleted after download: " + file.getName());
-                } else {
-                    System.err.println("Failed to delete file: " + file.getName());
-                }
-            }
-            
-            // Remove from maps
-            availableFiles.remove(port);
-            accessTokens.remove(port);
-            System.out.println("Cleaned up port " + port + " and associated token");
-        }
-    }
-    
-    public void startFileServer(int port){
-        String filePath = availableFiles.get(port);
-        if(filePath == null){
-            System.out.println("No files is associated with this port: " + port);
-            return;
-        }
-        try (ServerSocket serverSocket = new ServerSocket(port)){
-            serverSocket.setSoTimeout(50000); // 50 seconds timeout for accept()
-            System.out.println("Serving File" + new File(filePath).getName() + "on port " + port);
-            Socket clientScoket = serverSocket.accept();
-            clientScoket.setSoTimeout(50000); // 50 seconds timeout for client socket
-            System.out.println("Client connection: "+clientScoket.getInetAddress());
-            new Thread(new FileSenderHandler(clientScoket,filePath)).start();
-        }catch (IOException e){
-            System.err.println("Error Handling file server on port : " + port);
-        }
-    }
-
-    private static class FileSenderHandler implements Runnable{
-        private final Socket clientSocket;
-        private final String filePath;
-
-        public FileSenderHandler(Socket clientSocket, String filePath) {
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
-        }
-
-        @Override
-        public void run() {
-            try {
-                clientSocket.setSoTimeout(30000); // 30 seconds timeout for client socket
-                try(FileInputStream fis = new FileInputStream(filePath)) {
-                    OutputStream oos = clientSocket.getOutputStream();
-                    String fileName = new File(filePath).getName();
-                    String header = "Filename: " + fileName + "\n";
-                    oos.write(header.getBytes());
-
-                    byte[] buffer = new byte[4096];
-                    int byteRead;
-                    while((byteRead = fis.read(buffer)) != -1){
-                        oos.write(buffer,0,byteRead);
-                    }
-                    System.out.println("File "+fileName+ " sent to " + clientSocket.getInetAddress());
-                }
-            } catch (IOException ex) {
-                System.err.println("Error sending file to the client " + ex.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing socket " + e.getMessage());
-                }
-            }
-        }
-    }
-}
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongPredicate;
+
+import org.abhineshjha.utils.RangeSet;
+import org.abhineshjha.utils.RelayBuffer;
+import org.abhineshjha.utils.TimerWheel;
+
+public class FileSharer {
+    private static final String JOURNAL_PREFIX = "shares.journal";
+
+    private final ConcurrentHashMap<Integer, Share> shares; // Share id -> Share
+    // Shares are served by TransferServer on one port, so ids no longer need
+    // to be free TCP ports and can simply count up
+    private final AtomicInteger nextShareId = new AtomicInteger(1);
+    // Token -> share id index used on every download
+    private final ShareRegistry shareRegistry = new ShareRegistry();
+    private final BlobStore blobStore;
+    private final ShareJournal journal;
+    // Runs share expiry and the file deletes behind cleanups off the request threads
+    private final TimerWheel timerWheel;
+    private final long shareTtlMillis; // 0 keeps shares until they are downloaded; caps per-share expiry
+    // Ids count up with creation, so the oldest share is the lowest live id.
+    // Eviction starts here; ids below are all gone. Guarded by evictionLock,
+    // a ReentrantLock since evictions delete files and write the journal while
+    // holding it, which must not pin the carrier of a virtual thread.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private int evictionCursor = 1;
+    // Which new tokens this node may hand out; see setTokenFilter
+    private volatile LongPredicate tokenFilter = key -> true;
+
+    public FileSharer(BlobStore blobStore, ShareJournal journal, TimerWheel timerWheel, long shareTtlMillis){
+        this.shares = new ConcurrentHashMap<>();
+        this.blobStore = blobStore;
+        this.journal = journal;
+        this.timerWheel = timerWheel;
+        this.shareTtlMillis = shareTtlMillis;
+    }
+
+    // Rebuild the shares from the journal after a restart. Entries whose file
+    // is gone are dropped, and stored files that no share refers to are
+    // deleted. Existence is checked against one listing per directory rather
+    // than a stat per share, so large indexes replay quickly.
+    public void restore(String uploadDir) throws IOException {
+        long start = System.nanoTime();
+        Collection<Share> entries = journal.replay();
+        Set<String> blobs = blobStore.storedDigests();
+        Set<String> plainFiles = new HashSet<>();
+        String[] names = new File(uploadDir).list();
+        if (names != null) {
+            plainFiles.addAll(Arrays.asList(names));
+        }
+
+        shareRegistry.ensureCapacity(entries.size());
+        int maxId = 0;
+        int dropped = 0;
+        Set<String> referencedFiles = new HashSet<>();
+        for (Share share : entries) {
+            maxId = Math.max(maxId, share.id);
+            String fileName = share.digest == null && !share.isBundle() ? new File(share.filePath).getName() : null;
+            boolean present;
+            if (share.isBundle()) {
+                present = true;
+                for (Share.Entry entry : share.entries) {
+                    present &= blobs.contains(entry.digest);
+                }
+            } else {
+                present = share.digest != null ? blobs.contains(share.digest) : plainFiles.contains(fileName);
+            }
+            if (!present || !shareRegistry.register(share.token, share.id)) {
+                dropped++;
+                continue;
+            }
+            if (share.isBundle()) {
+                for (Share.Entry entry : share.entries) {
+                    blobStore.retain(entry.digest);
+                }
+            } else if (share.digest != null) {
+                blobStore.retain(share.digest);
+            } else {
+                referencedFiles.add(fileName);
+            }
+            shares.put(share.id, share);
+            // Shares that expired while the server was down go with the first tick
+            scheduleExpiry(share);
+        }
+        nextShareId.set(maxId + 1);
+
+        // Anything not referenced by a live share is an orphan from before the restart
+        int orphans = blobStore.deleteUnreferenced();
+        for (String name : plainFiles) {
+            File file = new File(uploadDir, name);
+            if (file.isFile() && !name.startsWith(JOURNAL_PREFIX) && !referencedFiles.contains(name) && file.delete()) {
+                orphans++;
+            }
+        }
+
+        if (dropped > 0 || journal.needsCompaction()) {
+            journal.compact(shares.values());
+        }
+        System.out.println("Restored " + shares.size() + " shares (" + dropped + " missing, " + orphans
+                + " orphaned files removed) in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    public void close() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing share journal " + e.getMessage());
+        }
+    }
+
+    // Share a file that belongs to this share alone; it is deleted on cleanup
+    public int offerFile(String filePath) {
+        return addShare(filePath, new File(filePath).getName(), null, List.of(), 1, 0, null);
+    }
+
+    // Share content from the BlobStore. The caller hands over one reference
+    // on the blob, which is released on cleanup.
+    public int offerBlob(String digest, String fileName) {
+        return offerBlob(digest, fileName, 1, 0);
+    }
+
+    // As above, for maxDownloads recipients (0 for any number) and, if
+    // ttlMillis is positive, until then at the latest
+    public int offerBlob(String digest, String fileName, int maxDownloads, long ttlMillis) {
+        return addShare(blobStore.blobFile(digest).getPath(), fileName, digest, List.of(), maxDownloads, ttlMillis,
+                null);
+    }
+
+    // Share several stored blobs under one token, downloaded as one ZIP named
+    // bundleName. The caller hands over one blob reference per entry.
+    public int offerBundle(String bundleName, List<Share.Entry> entries, int maxDownloads, long ttlMillis) {
+        return addShare("", bundleName, null, List.copyOf(entries), maxDownloads, ttlMillis, null);
+    }
+
+    // Share an upload that is still to come, streamed through relay to a
+    // single recipient. Nothing is stored, so relays are not journaled and
+    // do not survive a restart.
+    public int offerRelay(String fileName, RelayBuffer relay, long ttlMillis) {
+        return addShare("", fileName, null, List.of(), 1, ttlMillis, relay);
+    }
+
+    private int addShare(String filePath, String fileName, String digest, List<Share.Entry> entries,
+                         int maxDownloads, long ttlMillis, RelayBuffer relay) {
+        int port = nextShareId.getAndIncrement();
+        // Allocate a unique access token for this share
+        String token = shareRegistry.allocate(port, tokenFilter);
+        long now = System.currentTimeMillis();
+        // A share may ask to go sooner than the server-wide TTL, never later
+        long expiresAt = ttlMillis > 0 && (shareTtlMillis <= 0 || ttlMillis < shareTtlMillis) ? now + ttlMillis : 0;
+        Share share = new Share(port, token, filePath, fileName, digest, now, entries, maxDownloads, expiresAt,
+                relay);
+        shares.put(port, share);
+        // Journal after the put, so a concurrent compaction cannot lose the share
+        if (relay == null) {
+            try {
+                journal.appendAdd(share);
+            } catch (IOException e) {
+                System.err.println("Error journaling share " + port + ": " + e.getMessage());
+            }
+        }
+        scheduleExpiry(share);
+        return port;
+    }
+
+    private void scheduleExpiry(Share share) {
+        long deadline = share.expiresAt > 0 ? share.expiresAt
+                : shareTtlMillis > 0 ? share.createdAt + shareTtlMillis : 0;
+        if (deadline == 0) {
+            return;
+        }
+        long delay = deadline - System.currentTimeMillis();
+        share.expiry = timerWheel.schedule(() -> expire(share.id), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the timer wheel thread once the share's TTL is up
+    private void expire(int port) {
+        Share share = unshare(port);
+        if (share != null) {
+            retireWhenIdle(share);
+            System.out.println("Share " + port + " expired");
+        }
+    }
+    
+    // Restrict new tokens to those the filter accepts, e.g. the tokens a
+    // cluster node owns. Restored shares keep their tokens.
+    public void setTokenFilter(LongPredicate filter) {
+        this.tokenFilter = filter;
+    }
+
+    public int shareCount() {
+        return shares.size();
+    }
+
+    public boolean isPortAvailable(int port) {
+        return shares.containsKey(port);
+    }
+    
+    // Validate token for a given port
+    public boolean validateToken(int port, String token) {
+        return token != null && shareRegistry.lookup(token) == port;
+    }
+    
+    // Get token for a given port (used to return in upload response)
+    public String getToken(int port) {
+        Share share = shares.get(port);
+        return share == null ? null : share.token;
+    }
+    
+    // Find port by token
+    public Integer getPortByToken(String token) {
+        int port = shareRegistry.lookup(token);
+        return port == -1 ? null : port;
+    }
+    
+    public Share getShare(int port) {
+        return shares.get(port);
+    }
+    
+    // Get file path for a given port
+    public String getFilePath(int port) {
+        Share share = shares.get(port);
+        return share == null ? null : share.filePath;
+    }
+    
+    // Get the name the file was uploaded with
+    public String getFileName(int port) {
+        Share share = shares.get(port);
+        return share == null ? null : share.fileName;
+    }
+    
+    // Record that bytes [start, end) of the share reached the recipient.
+    // Returns true once every byte of the file has been delivered to that
+    // recipient, possibly spread over several range requests.
+    public boolean recordDelivered(int port, String recipient, long start, long end, long fileSize) {
+        Share share = shares.get(port);
+        if (share == null) {
+            return false;
+        }
+        synchronized (share.delivered) {
+            RangeSet delivered = share.delivered.computeIfAbsent(recipient, key -> new RangeSet());
+            delivered.add(start, end);
+            if (!delivered.coversAll(fileSize)) {
+                return false;
+            }
+            // Start over should the same recipient download it again
+            share.delivered.remove(recipient);
+            return true;
+        }
+    }
+
+    // Start a download of the share. Returns null if the share is gone or
+    // every download it has left is taken by a transfer in progress;
+    // otherwise releaseReader must follow. The share's file stays in place
+    // until its last reader is released, even if the share is withdrawn.
+    public Share acquireReader(int port) {
+        Share share = shares.get(port);
+        return share != null && share.addReader() ? share : null;
+    }
+
+    // End a download started with acquireReader. downloaded says whether the
+    // recipient got the whole file: then it counts as one of the share's
+    // downloads, otherwise the download slot it claimed is free again.
+    public void releaseReader(Share share, boolean downloaded) {
+        if (downloaded) {
+            countDownload(share, share.completeDownload());
+        }
+        if (share.removeReader(!downloaded)) {
+            timerWheel.schedule(() -> retire(share), 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Count one successful download that did not go through acquireReader
+    public void recordDownload(int port) {
+        Share share = shares.get(port);
+        if (share != null) {
+            countDownload(share, share.downloads.incrementAndGet());
+        }
+    }
+
+    // Once the share's downloads are used up the token stops working right
+    // away; the file delete and journal write are batched on the timer wheel
+    // after the last reader finishes.
+    private void countDownload(Share share, int downloads) {
+        if (share.maxDownloads > 0 && downloads >= share.maxDownloads) {
+            if (unshare(share.id) != null) {
+                retireWhenIdle(share);
+                System.out.println("Cleaned up share " + share.id + " and associated token after "
+                        + downloads + (downloads == 1 ? " download" : " downloads"));
+            }
+            return;
+        }
+        try {
+            journal.appendDownload(share.id);
+        } catch (IOException e) {
+            System.err.println("Error journaling download of share " + share.id + ": " + e.getMessage());
+        }
+    }
+
+    // Withdraw the oldest shares, skipping those being downloaded, until
+    // enough returns true or no share is left to take. Evicted shares are
+    // retired on the calling thread, so the space of content they alone
+    // referenced is free on return. Returns the number of shares evicted.
+    public int evictOldest(BooleanSupplier enough) {
+        int evicted = 0;
+        evictionLock.lock();
+        try {
+            int end = nextShareId.get();
+            while (evictionCursor < end && !shares.containsKey(evictionCursor)) {
+                evictionCursor++;
+            }
+            for (int id = evictionCursor; id < end && !enough.getAsBoolean(); id++) {
+                Share share = shares.get(id);
+                // Relays hold no disk space
+                if (share == null || share.isRelay() || share.hasReaders() || unshare(id) == null) {
+                    continue;
+                }
+                // A download may have started after all; then its last reader retires it
+                if (share.markUnshared()) {
+                    retire(share);
+                }
+                evicted++;
+                System.out.println("Evicted share " + id + " to free disk space");
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return evicted;
+    }
+
+    private void retireWhenIdle(Share share) {
+        if (share.markUnshared()) {
+            timerWheel.schedule(() -> retire(share), 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Take the share out of the index. Only one caller wins for a given share.
+    private Share unshare(int port) {
+        Share share = shares.remove(port);
+        if (share != null) {
+            shareRegistry.remove(share.token);
+            TimerWheel.Timeout expiry = share.expiry;
+            if (expiry != null) {
+                expiry.cancel();
+            }
+        }
+        return share;
+    }
+
+    // Delete what the share stored and record its removal
+    private void retire(Share share) {
+        if (share.isRelay()) {
+            // Wakes an uploader still waiting for its recipient
+            share.relay.fail("Relay share withdrawn");
+            return;
+        }
+        if (share.isBundle()) {
+            // Every file of a bundle holds its own blob reference
+            for (Share.Entry entry : share.entries) {
+                blobStore.release(entry.digest);
+            }
+        } else if (share.digest != null) {
+            // Content may be shared by other shares; the store deletes it with the last one
+            blobStore.release(share.digest);
+        } else {
+            // Delete the physical file
+            File file = new File(share.filePath);
+            if (file.exists()) {
+                if (file.delete()) {
+                    System.out.println("File deleted: " + file.getName());
+                } else {
+                    System.err.println("Failed to delete file: " + file.getName());
+                }
+            }
+        }
+
+        try {
+            journal.appendRemove(share.id);
+            if (journal.needsCompaction()) {
+                journal.compact(shares.values());
+            }
+        } catch (IOException e) {
+            System.err.println("Error journaling removal of share " + share.id + ": " + e.getMessage());
+        }
+    }
+}
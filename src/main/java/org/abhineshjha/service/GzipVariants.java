@@ -0,0 +1,146 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Precompressed gzip copies of stored blobs, kept next to the blob as
+// "<digest>.gz" so a download that accepts gzip costs no CPU. Compression
+// runs once per blob on a background thread. Formats that are compressed
+// already are skipped by extension, and everything else must pass a probe
+// that deflates the first 64KB before the whole file is compressed.
+public class GzipVariants {
+    private static final String[] COMPRESSED_EXTENSIONS = {
+        ".zip", ".png", ".jpg", ".jpeg", ".gif", ".docx"
+    };
+    private static final int PROBE_SIZE = 64 * 1024;
+    private static final long MIN_SIZE = 1024;       // Below this the headers cost more than we save
+    private static final double MAX_RATIO = 0.9;     // Keep a variant only if it saves at least 10%
+    private static final int PRUNE_THRESHOLD = 10_000;
+
+    private final BlobStore blobStore;
+    private final ExecutorService executor;
+    // Digests queued for compression or found not worth compressing
+    private final Set<String> skipped = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public GzipVariants(BlobStore blobStore) {
+        this.blobStore = blobStore;
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "gzip-variants");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Queue compression of a blob, unless it has a variant or is not worth it
+    public void prepare(String digest, String fileName) {
+        if (isCompressedType(fileName) || variant(digest) != null || !skipped.add(digest)) {
+            return;
+        }
+        queued.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                if (compress(digest)) {
+                    skipped.remove(digest);
+                }
+            } catch (IOException e) {
+                System.err.println("Error compressing blob " + digest + ": " + e.getMessage());
+                skipped.remove(digest); // Try again on a later download
+            } finally {
+                queued.decrementAndGet();
+            }
+            // Forget blobs that were deleted since
+            if (skipped.size() > PRUNE_THRESHOLD) {
+                skipped.removeIf(stale -> !blobStore.isStored(stale));
+            }
+        });
+    }
+
+    // Blobs waiting for or being compressed
+    int queued() {
+        return queued.get();
+    }
+
+    // The compressed copy of a blob, or null if there is none (yet)
+    public File variant(String digest) {
+        File file = blobStore.variantFile(digest);
+        return file.isFile() ? file : null;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // True for formats that are compressed already, by extension
+    public static boolean isCompressedType(String fileName) {
+        String lower = fileName.toLowerCase();
+        for (String ext : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Deflate a sample from the start of the file; true if it shrinks enough
+    static boolean probe(File file) throws IOException {
+        byte[] sample = new byte[PROBE_SIZE];
+        int length;
+        try (InputStream in = new FileInputStream(file)) {
+            length = in.readNBytes(sample, 0, sample.length);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[PROBE_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return compressed < length * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Returns true if a variant was written
+    private boolean compress(String digest) throws IOException {
+        File blob = blobStore.blobFile(digest);
+        if (!blob.isFile() || blob.length() < MIN_SIZE || !probe(blob)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        File tempFile = blobStore.newIncomingFile(".gz");
+        try {
+            try (InputStream in = new FileInputStream(blob);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(tempFile), 64 * 1024)) {
+                in.transferTo(out);
+            }
+            if (tempFile.length() >= blob.length() * MAX_RATIO) {
+                return false; // The probe was too optimistic
+            }
+            // The last share may have gone while we were compressing
+            if (!blobStore.commitVariant(digest, tempFile)) {
+                return false;
+            }
+            File variant = blobStore.variantFile(digest);
+            System.out.println("Compressed blob " + digest + ": " + blob.length() + " -> " + variant.length()
+                    + " bytes in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+            return true;
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
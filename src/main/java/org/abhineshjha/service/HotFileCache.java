@@ -0,0 +1,419 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Small blobs kept in memory outside the Java heap, so a download of a
+// screenshot or a CSV is answered without opening the file and the cached
+// bytes never cost the GC anything. Memory comes in 4MB direct ByteBuffer
+// slabs, allocated as the cache grows and cut into 4KB pages; an entry takes
+// as many pages as it needs, wherever they are.
+//
+// Eviction is W-TinyLFU: new entries go into a small LRU window, and an entry
+// pushed out of the window only gets into the main LRU if a frequency sketch
+// says it is used more often than the main LRU's next victim. A burst of
+// one-off uploads therefore cannot flush out blobs that are shared again and
+// again.
+//
+// Entries are reference counted: one reference is the cache's, and every
+// download being served holds another, so pages are only reused once no
+// response reads them any more.
+public class HotFileCache {
+    private static final int PAGE_SIZE = 4096;
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+    private static final int PAGES_PER_SLAB = SLAB_SIZE / PAGE_SIZE;
+    private static final int WINDOW_PERCENT = 10;
+
+    private final long maxEntrySize;
+    private final int maxPages;
+    private final int windowMaxPages;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Only ever appended to, so page lookups need no lock
+    private final List<ByteBuffer> slabs = new CopyOnWriteArrayList<>();
+    // Guarded by lock
+    private final int[] freePages;
+    private int freeCount;
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private int windowPages;
+    private int mainPages;
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    // A cached blob: its pages, in order, and what a response needs to know
+    public class Entry {
+        public final String digest;
+        public final int length;
+        public final long lastModified;
+        private final int[] pages;
+        private final AtomicInteger refs = new AtomicInteger(2); // The cache's and the loader's
+
+        private Entry(String digest, int length, long lastModified, int[] pages) {
+            this.digest = digest;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.pages = pages;
+        }
+
+        private boolean retain() {
+            int count;
+            do {
+                count = refs.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        // Give back a reference from acquire()
+        public void release() {
+            if (refs.decrementAndGet() == 0) {
+                freePages(pages);
+            }
+        }
+
+        public void transferTo(WritableByteChannel target) throws IOException {
+            for (int i = 0; i < pages.length; i++) {
+                ByteBuffer page = page(pages[i]);
+                page.limit(page.position() + Math.min(PAGE_SIZE, length - i * PAGE_SIZE));
+                while (page.hasRemaining()) {
+                    target.write(page);
+                }
+            }
+        }
+
+        private void load(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                for (int i = 0; i < pages.length; i++) {
+                    ByteBuffer page = page(pages[i]);
+                    page.limit(page.position() + Math.min(PAGE_SIZE, length - i * PAGE_SIZE));
+                    while (page.hasRemaining()) {
+                        int read = channel.read(page, position);
+                        if (read == -1) {
+                            throw new IOException("Blob shorter than expected: " + digest);
+                        }
+                        position += read;
+                    }
+                }
+            }
+        }
+    }
+
+    // A maxBytes of 0 disables the cache
+    public HotFileCache(long maxBytes, long maxEntrySize) {
+        this.maxEntrySize = maxEntrySize;
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE / 2, maxBytes / PAGE_SIZE);
+        this.windowMaxPages = Math.max(maxPages * WINDOW_PERCENT / 100, pagesFor(maxEntrySize));
+        this.freePages = new int[maxPages];
+        this.sketch = new FrequencySketch(Math.max(16, maxPages));
+    }
+
+    public boolean isEnabled() {
+        return maxPages > 0 && windowMaxPages < maxPages;
+    }
+
+    // The cached blob with one reference taken, or null. The caller must
+    // release() it when done.
+    public Entry acquire(String digest) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry = entries.get(digest);
+        if (entry == null || !entry.retain()) {
+            misses.increment();
+            recordAccess(digest, false);
+            return null;
+        }
+        hits.increment();
+        recordAccess(digest, true);
+        return entry;
+    }
+
+    // Cache a freshly stored blob if it is small enough and wins admission
+    public void offer(String digest, File file) {
+        if (!isEnabled()) {
+            return;
+        }
+        long size = file.length();
+        if (size <= 0 || size > maxEntrySize || entries.containsKey(digest)) {
+            return;
+        }
+        int count = pagesFor(size);
+        Entry entry;
+        lock.lock();
+        try {
+            sketch.increment(digest);
+            if (window.containsKey(digest) || main.containsKey(digest)) {
+                return; // Being loaded by another upload of the same content
+            }
+            window.put(digest, null); // Placeholder, so rebalancing keeps it
+            windowPages += count;
+            rebalance();
+            int[] pages = allocatePages(count);
+            if (pages == null) {
+                // Evicted pages are still being sent to clients
+                window.remove(digest);
+                windowPages -= count;
+                rejections.increment();
+                return;
+            }
+            entry = new Entry(digest, (int) size, file.lastModified(), pages);
+            window.put(digest, entry);
+        } finally {
+            lock.unlock();
+        }
+
+        // Read outside the lock; the loader's reference keeps the pages ours
+        // even if the entry is evicted meanwhile
+        try {
+            entry.load(file);
+            lock.lock();
+            try {
+                if (window.get(digest) == entry || main.get(digest) == entry) {
+                    entries.put(digest, entry);
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            System.err.println("Error caching blob " + digest + ": " + e.getMessage());
+            invalidate(digest);
+        } finally {
+            entry.release();
+        }
+    }
+
+    // Drop a blob, e.g. once it is deleted from the store
+    public void invalidate(String digest) {
+        if (!isEnabled()) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry entry = window.remove(digest);
+            if (entry != null) {
+                windowPages -= entry.pages.length;
+            } else if ((entry = main.remove(digest)) != null) {
+                mainPages -= entry.pages.length;
+            }
+            if (entry != null) {
+                drop(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // Blobs that lost the admission contest or found no free pages
+    public long rejections() {
+        return rejections.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Bytes of pages held by cached entries
+    public long usedBytes() {
+        lock.lock();
+        try {
+            return (long) (windowPages + mainPages) * PAGE_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads must not wait for the lock: when it is busy the access is not
+    // counted and the LRU order is not updated, which costs a little accuracy
+    private void recordAccess(String digest, boolean hit) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            sketch.increment(digest);
+            if (hit && window.get(digest) == null) {
+                main.get(digest); // Moves it to the most recently used end
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Move the window's overflow into the main LRU, where each candidate has
+    // to be used more often than the victims it would push out
+    private void rebalance() {
+        int mainMaxPages = maxPages - windowMaxPages;
+        Iterator<Entry> eldest = window.values().iterator();
+        while (windowPages > windowMaxPages && eldest.hasNext()) {
+            Entry candidate = eldest.next();
+            if (candidate == null) {
+                continue; // The entry being added, or still loading
+            }
+            eldest.remove();
+            windowPages -= candidate.pages.length;
+
+            int candidateFrequency = sketch.frequency(candidate.digest);
+            List<Entry> victims = new ArrayList<>();
+            int freed = 0;
+            boolean admit = true;
+            for (Entry victim : main.values()) {
+                if (mainPages - freed + candidate.pages.length <= mainMaxPages) {
+                    break;
+                }
+                if (victim == null || sketch.frequency(victim.digest) >= candidateFrequency) {
+                    admit = false;
+                    break;
+                }
+                victims.add(victim);
+                freed += victim.pages.length;
+            }
+            if (admit && mainPages - freed + candidate.pages.length <= mainMaxPages) {
+                for (Entry victim : victims) {
+                    main.remove(victim.digest);
+                    mainPages -= victim.pages.length;
+                    evictions.increment();
+                    drop(victim);
+                }
+                main.put(candidate.digest, candidate);
+                mainPages += candidate.pages.length;
+            } else {
+                evictions.increment();
+                drop(candidate);
+            }
+        }
+    }
+
+    private void drop(Entry entry) {
+        entries.remove(entry.digest, entry);
+        entry.release();
+    }
+
+    // Pages for a new entry, carving a new slab if the cache may still grow
+    private int[] allocatePages(int count) {
+        while (freeCount < count && slabs.size() * PAGES_PER_SLAB < maxPages) {
+            int first = slabs.size() * PAGES_PER_SLAB;
+            int pages = Math.min(PAGES_PER_SLAB, maxPages - first);
+            slabs.add(ByteBuffer.allocateDirect(pages * PAGE_SIZE));
+            for (int i = pages - 1; i >= 0; i--) {
+                freePages[freeCount++] = first + i;
+            }
+        }
+        if (freeCount < count) {
+            return null;
+        }
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            pages[i] = freePages[--freeCount];
+        }
+        return pages;
+    }
+
+    private void freePages(int[] pages) {
+        lock.lock();
+        try {
+            for (int page : pages) {
+                freePages[freeCount++] = page;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A view of one page, positioned at its start
+    private ByteBuffer page(int page) {
+        ByteBuffer view = slabs.get(page / PAGES_PER_SLAB).duplicate();
+        view.position((page % PAGES_PER_SLAB) * PAGE_SIZE);
+        return view;
+    }
+
+    private static int pagesFor(long size) {
+        return (int) ((size + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    // Count-min sketch of recent access frequencies: four rows of counters
+    // that saturate at 15. All counters are halved every 10 * width
+    // increments, so popularity from long ago fades.
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[width];
+            }
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < 15) {
+                    rows[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (byte[] row : rows) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = 15;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.abhineshjha.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.abhineshjha.utils.RangeSet;
+import org.abhineshjha.utils.RelayBuffer;
+import org.abhineshjha.utils.TimerWheel;
+
+// One shared file, or several files shared as a bundle, as tracked by FileSharer
+public class Share {
+    // One file of a bundle
+    public static class Entry {
+        public final String name;       // Path inside the ZIP
+        public final String filePath;
+        public final String digest;
+        public final long size;
+        public final long crc;          // CRC-32 taken at upload, STORED zip entries need it up front
+
+        public Entry(String name, String filePath, String digest, long size, long crc) {
+            this.name = name;
+            this.filePath = filePath;
+            this.digest = digest;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    public final int id;
+    public final String token;
+    public final String filePath;
+    public final String fileName;   // Name presented to the downloader
+    public final String digest;     // SHA-256 of the content, null if not in the BlobStore
+    public final long createdAt;    // Epoch millis, the TTL counts from here
+    public final List<Entry> entries; // Files of a bundle; empty for a single file
+    public final int maxDownloads;  // Completed downloads before the share goes, 0 for no limit
+    public final long expiresAt;    // Epoch millis, 0 to follow the server-wide TTL
+    public final RelayBuffer relay; // Live relay from an uploader, null for stored content
+    final AtomicInteger downloads = new AtomicInteger();
+    // Bytes each recipient was sent so far, by client address, so ranges
+    // from different recipients never add up to one download. Only the
+    // most recent few are kept; a recipient dropped from here starts over.
+    // Guarded by itself.
+    final Map<String, RangeSet> delivered = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RangeSet> eldest) {
+            return size() > MAX_TRACKED_RECIPIENTS;
+        }
+    };
+    volatile TimerWheel.Timeout expiry;
+
+    private static final int MAX_TRACKED_RECIPIENTS = 64;
+
+    // Downloads in progress; a share that is withdrawn meanwhile is only
+    // retired after the last. Guarded by this.
+    private int readers;
+    private int claims; // Readers still holding the download they claimed
+    private boolean unshared;
+
+    Share(int id, String token, String filePath, String fileName, String digest, long createdAt,
+          List<Entry> entries) {
+        this(id, token, filePath, fileName, digest, createdAt, entries, 1, 0);
+    }
+
+    Share(int id, String token, String filePath, String fileName, String digest, long createdAt,
+          List<Entry> entries, int maxDownloads, long expiresAt) {
+        this(id, token, filePath, fileName, digest, createdAt, entries, maxDownloads, expiresAt, null);
+    }
+
+    Share(int id, String token, String filePath, String fileName, String digest, long createdAt,
+          List<Entry> entries, int maxDownloads, long expiresAt, RelayBuffer relay) {
+        this.id = id;
+        this.token = token;
+        this.filePath = filePath;
+        this.fileName = fileName;
+        this.digest = digest;
+        this.createdAt = createdAt;
+        this.entries = entries;
+        this.maxDownloads = maxDownloads;
+        this.expiresAt = expiresAt;
+        this.relay = relay;
+    }
+
+    public int downloads() {
+        return downloads.get();
+    }
+
+    // The share's file, opened for one reader, who closes it. Readers do not
+    // share a channel: an interrupted reader closes its channel, which must
+    // not cut off anybody else. Only valid between FileSharer.acquireReader
+    // and releaseReader.
+    public FileChannel openChannel() throws IOException {
+        return FileChannel.open(Path.of(filePath), StandardOpenOption.READ);
+    }
+
+    // Every reader claims one of the share's downloads up front, so no more
+    // transfers run at once than there are downloads left
+    synchronized boolean addReader() {
+        if (unshared || maxDownloads > 0 && downloads.get() + claims >= maxDownloads) {
+            return false;
+        }
+        claims++;
+        readers++;
+        return true;
+    }
+
+    // The reader's claim becomes a completed download. Returns the downloads
+    // completed so far.
+    synchronized int completeDownload() {
+        claims--;
+        return downloads.incrementAndGet();
+    }
+
+    // Returns true when this was the last reader of a withdrawn share. A
+    // claim still held, i.e. the transfer failed or was partial, is given back.
+    synchronized boolean removeReader(boolean claimHeld) {
+        if (claimHeld) {
+            claims--;
+        }
+        return --readers == 0 && unshared;
+    }
+
+    synchronized boolean hasReaders() {
+        return readers > 0;
+    }
+
+    // Returns true when no reader is left, so the share can be retired now
+    synchronized boolean markUnshared() {
+        unshared = true;
+        return readers == 0;
+    }
+
+    // Bundles have no file of their own; they are zipped while downloaded
+    public boolean isBundle() {
+        return !entries.isEmpty();
+    }
+
+    // Relays have no file either; they pass the upload through as it arrives
+    public boolean isRelay() {
+        return relay != null;
+    }
+}
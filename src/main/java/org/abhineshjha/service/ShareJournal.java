@@ -0,0 +1,273 @@
+package org.abhineshjha.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only log of share additions, downloads and removals, so shares
+// survive a restart. Each record is framed as
+//   type (1 byte) | payload length (int) | payload | CRC32 of payload (int)
+// A torn record at the end of the file (crash mid-write) fails its length or
+// CRC check and is cut off on the next open. Once removals outnumber live
+// shares the log is rewritten with only the live shares.
+public class ShareJournal {
+    private static final int MAGIC = 0x504C4A31; // "PLJ1"
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte DOWNLOAD = 3; // One completed download of a multi-download share
+    private static final int MIN_COMPACT_RECORDS = 10_000;
+
+    private final File journalFile;
+    private DataOutputStream out;
+    private int liveRecords;
+    private int deadRecords;
+    private boolean undated; // Live shares replayed from records without createdAt
+
+    public ShareJournal(String uploadDir) {
+        this.journalFile = new File(uploadDir, "shares.journal");
+    }
+
+    // Read the journal and return the shares that are still live, in the
+    // order they were added. Must be called once, before any append. The file
+    // is mapped and parsed in place, which keeps replay of a few hundred
+    // thousand records well under a second.
+    public synchronized Collection<Share> replay() throws IOException {
+        Map<Integer, Share> live = new LinkedHashMap<>();
+        long validLength = 0;
+        // Records written before shares had a creation time are at least as
+        // old as the last write to the journal
+        long lastWritten = journalFile.lastModified();
+        if (journalFile.exists()) {
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+                long fileLength = channel.size();
+                if (fileLength > Integer.MAX_VALUE) {
+                    throw new IOException("Share journal too large: " + fileLength + " bytes");
+                }
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+                if (fileLength >= 4) {
+                    if (buffer.getInt() != MAGIC) {
+                        throw new IOException("Not a share journal: " + journalFile);
+                    }
+                    validLength = 4;
+                }
+                int records = 0;
+                CRC32 crc = new CRC32();
+                while (validLength > 0 && buffer.remaining() >= 5) {
+                    byte type = buffer.get();
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining() - 4) break;
+                    ByteBuffer payload = buffer.slice(buffer.position(), length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    buffer.position(buffer.position() + length);
+                    if (buffer.getInt() != (int) crc.getValue()) break;
+                    validLength = buffer.position();
+                    records++;
+
+                    if (type == ADD) {
+                        Share share = readShare(payload, lastWritten);
+                        live.put(share.id, share);
+                    } else if (type == REMOVE) {
+                        live.remove(payload.getInt());
+                    } else if (type == DOWNLOAD) {
+                        Share share = live.get(payload.getInt());
+                        if (share != null) {
+                            share.downloads.incrementAndGet();
+                        }
+                    }
+                }
+                deadRecords = records - live.size();
+            }
+        }
+        // A dated share that happens to match only costs one extra compaction
+        undated = live.values().stream().anyMatch(share -> share.createdAt == lastWritten);
+
+        if (validLength > 0 && validLength < journalFile.length()) {
+            System.err.println("Share journal: dropping " + (journalFile.length() - validLength)
+                    + " bytes of incomplete records");
+            try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        openForAppend(validLength == 0);
+        liveRecords = live.size();
+        return live.values();
+    }
+
+    public synchronized void appendAdd(Share share) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(payload);
+        writeShare(record, share);
+        append(ADD, payload.toByteArray());
+        liveRecords++;
+    }
+
+    public synchronized void appendRemove(int shareId) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(4);
+        new DataOutputStream(payload).writeInt(shareId);
+        append(REMOVE, payload.toByteArray());
+        liveRecords--;
+        deadRecords += 2; // The removal and the addition it cancels
+    }
+
+    public synchronized void appendDownload(int shareId) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(4);
+        new DataOutputStream(payload).writeInt(shareId);
+        append(DOWNLOAD, payload.toByteArray());
+        deadRecords++; // Folded into the share's own record by the next compaction
+    }
+
+    // True when the log is dominated by records for shares that are gone,
+    // or when shares replayed from old records need their creation time
+    // written down, or else they would look new after every restart
+    public synchronized boolean needsCompaction() {
+        return undated || deadRecords >= MIN_COMPACT_RECORDS && deadRecords > liveRecords;
+    }
+
+    // Rewrite the journal with just the given live shares. The collection is
+    // iterated under the journal lock, so a share added concurrently is either
+    // in it or appended after the rewrite. The new file is written next to the
+    // old one and swapped in with an atomic rename.
+    public synchronized void compact(Collection<Share> liveShares) throws IOException {
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+            DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            tempOut.writeInt(MAGIC);
+            int written = 0;
+            for (Share share : liveShares) {
+                if (share.isRelay()) {
+                    continue; // Nothing to come back to after a restart
+                }
+                written++;
+                ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+                writeShare(new DataOutputStream(payload), share);
+                writeRecord(tempOut, ADD, payload.toByteArray());
+            }
+            tempOut.flush();
+            // The rename must never expose a half-written file
+            fileOut.getFD().sync();
+            liveRecords = written;
+        }
+        if (out != null) {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), journalFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        openForAppend(false);
+        deadRecords = 0;
+        undated = false;
+        System.out.println("Share journal compacted to " + liveRecords + " shares");
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void openForAppend(boolean writeHeader) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, !writeHeader), 1 << 16));
+        if (writeHeader) {
+            out.writeInt(MAGIC);
+            out.flush();
+        }
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        writeRecord(out, type, payload);
+        // Hand the record to the OS so it survives a process crash
+        out.flush();
+    }
+
+    private static void writeRecord(DataOutputStream target, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        target.writeByte(type);
+        target.writeInt(payload.length);
+        target.write(payload);
+        target.writeInt((int) crc.getValue());
+    }
+
+    private static void writeShare(DataOutputStream record, Share share) throws IOException {
+        record.writeInt(share.id);
+        record.writeUTF(share.token);
+        record.writeUTF(share.filePath);
+        record.writeUTF(share.fileName);
+        record.writeBoolean(share.digest != null);
+        if (share.digest != null) {
+            record.writeUTF(share.digest);
+        }
+        record.writeLong(share.createdAt);
+        record.writeInt(share.entries.size());
+        for (Share.Entry entry : share.entries) {
+            record.writeUTF(entry.name);
+            record.writeUTF(entry.filePath);
+            record.writeUTF(entry.digest);
+            record.writeLong(entry.size);
+            record.writeInt((int) entry.crc);
+        }
+        record.writeInt(share.maxDownloads);
+        record.writeLong(share.expiresAt);
+        record.writeInt(share.downloads());
+    }
+
+    private static Share readShare(ByteBuffer record, long undatedCreatedAt) throws IOException {
+        int id = record.getInt();
+        String token = readUTF(record);
+        String filePath = readUTF(record);
+        String fileName = readUTF(record);
+        String digest = record.get() != 0 ? readUTF(record) : null;
+        // Fields added later are appended; older records simply end earlier
+        long createdAt = record.remaining() >= 8 ? record.getLong() : undatedCreatedAt;
+        List<Share.Entry> entries = new ArrayList<>();
+        int count = record.remaining() >= 4 ? record.getInt() : 0;
+        for (int i = 0; i < count; i++) {
+            entries.add(new Share.Entry(readUTF(record), readUTF(record), readUTF(record),
+                    record.getLong(), record.getInt() & 0xFFFFFFFFL));
+        }
+        if (record.remaining() < 16) {
+            // Written before shares had limits: one download, server TTL
+            return new Share(id, token, filePath, fileName, digest, createdAt, entries);
+        }
+        Share share = new Share(id, token, filePath, fileName, digest, createdAt, entries,
+                record.getInt(), record.getLong());
+        share.downloads.set(record.getInt());
+        return share;
+    }
+
+    // Counterpart of DataOutputStream.writeUTF for a buffer. Tokens, digests
+    // and most paths are ASCII, which is decoded without the UTF state machine.
+    private static String readUTF(ByteBuffer record) throws IOException {
+        int length = record.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        for (byte b : bytes) {
+            if (b <= 0) {
+                byte[] framed = new byte[length + 2];
+                framed[0] = (byte) (length >>> 8);
+                framed[1] = (byte) length;
+                System.arraycopy(bytes, 0, framed, 2, length);
+                return new DataInputStream(new ByteArrayInputStream(framed)).readUTF();
+            }
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,245 @@
+package org.abhineshjha.service;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongPredicate;
+
+// Token -> share id index. Tokens are random 60-bit values shown to users as
+// 12 Crockford base32 characters. The index is an open-addressing table of
+// primitive longs/ints (no boxing, no entry objects), so a lookup is one hash
+// and a short linear probe no matter how many shares are live. Lookups run
+// under an optimistic read stamp and only fall back to a real read lock when
+// they race with a writer.
+public class ShareRegistry {
+    private static final int TOKEN_LENGTH = 12;
+    private static final long TOKEN_MASK = (1L << (TOKEN_LENGTH * 5)) - 1;
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int[] DIGITS = new int[128];
+
+    static {
+        Arrays.fill(DIGITS, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DIGITS[ALPHABET[i]] = i;
+            DIGITS[Character.toLowerCase(ALPHABET[i])] = i;
+        }
+        // Crockford base32 reads the easily confused letters as digits
+        DIGITS['O'] = DIGITS['o'] = 0;
+        DIGITS['I'] = DIGITS['i'] = DIGITS['L'] = DIGITS['l'] = 1;
+    }
+
+    private static final long EMPTY = 0L;
+    private static final long DELETED = -1L;
+    private static final int MIN_CAPACITY = 64;
+
+    private final SecureRandom random = new SecureRandom();
+    private final StampedLock lock = new StampedLock();
+    // Keys and values are swapped together on growth, so an optimistic
+    // reader never pairs the arrays of two different tables
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private int size;
+    private int deleted;
+
+    private static final class Table {
+        final long[] keys;
+        final int[] values;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new int[capacity];
+        }
+    }
+
+    // Allocate a fresh token for the share. The check for an existing token
+    // and the insert happen under one write lock, so two live shares can never
+    // end up with the same token.
+    public String allocate(int shareId) {
+        return allocate(shareId, key -> true);
+    }
+
+    // As above, drawing tokens until accept takes one. A cluster node uses
+    // it to keep only tokens that hash to itself.
+    public String allocate(int shareId, LongPredicate accept) {
+        while (true) {
+            long key = random.nextLong() & TOKEN_MASK;
+            if (key == EMPTY || !accept.test(key)) continue;
+            long stamp = lock.writeLock();
+            try {
+                if (slotOf(table.keys, key) >= 0) continue;
+                insert(key, shareId);
+                return encode(key);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    // Register an existing token, e.g. one restored from disk. Returns false
+    // if the token is malformed or already taken.
+    public boolean register(String token, int shareId) {
+        long key = decode(token);
+        if (key == -1) return false;
+        long stamp = lock.writeLock();
+        try {
+            if (slotOf(table.keys, key) >= 0) return false;
+            insert(key, shareId);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Returns the share id for the token, or -1 if there is none
+    public int lookup(String token) {
+        long key = decode(token);
+        if (key == -1) return -1;
+
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int slot = slotOf(t.keys, key);
+        int value = slot >= 0 && slot < t.values.length ? t.values[slot] : -1;
+        if (lock.validate(stamp)) {
+            return value;
+        }
+
+        stamp = lock.readLock();
+        try {
+            t = table;
+            slot = slotOf(t.keys, key);
+            return slot >= 0 ? t.values[slot] : -1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean remove(String token) {
+        long key = decode(token);
+        if (key == -1) return false;
+        long stamp = lock.writeLock();
+        try {
+            long[] keys = table.keys;
+            int slot = slotOf(keys, key);
+            if (slot < 0) return false;
+            keys[slot] = DELETED;
+            size--;
+            deleted++;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Size the table for the given number of tokens up front, e.g. before
+    // registering everything restored from disk
+    public void ensureCapacity(int expectedSize) {
+        long stamp = lock.writeLock();
+        try {
+            if ((expectedSize + deleted) * 2 > table.keys.length) {
+                int saved = size;
+                size = Math.max(size, expectedSize);
+                rehash();
+                size = saved;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Caller must hold the write lock
+    private void insert(long key, int value) {
+        // Keep the table at most half full, counting tombstones
+        if ((size + deleted + 1) * 2 > table.keys.length) {
+            rehash();
+        }
+        long[] keys = table.keys;
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY && keys[i] != DELETED) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == DELETED) deleted--;
+        keys[i] = key;
+        table.values[i] = value;
+        size++;
+    }
+
+    // Grow, or rebuild at the same size when the table is mostly tombstones
+    private void rehash() {
+        long[] keys = table.keys;
+        int[] values = table.values;
+        int capacity = keys.length;
+        while ((size + 1) * 4 > capacity) {
+            capacity <<= 1;
+        }
+        capacity = Math.max(capacity, MIN_CAPACITY);
+
+        Table newTable = new Table(capacity);
+        long[] newKeys = newTable.keys;
+        int[] newValues = newTable.values;
+        int mask = capacity - 1;
+        for (int slot = 0; slot < keys.length; slot++) {
+            long key = keys[slot];
+            if (key == EMPTY || key == DELETED) continue;
+            int i = mix(key) & mask;
+            while (newKeys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            newKeys[i] = key;
+            newValues[i] = values[slot];
+        }
+        table = newTable;
+        deleted = 0;
+    }
+
+    private static int slotOf(long[] k, long key) {
+        int mask = k.length - 1;
+        int i = mix(key) & mask;
+        // Bounded probe so a racing optimistic reader can never spin forever
+        for (int probes = 0; probes < k.length; probes++) {
+            long current = k[i];
+            if (current == key) return i;
+            if (current == EMPTY) return -1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static String encode(long key) {
+        char[] chars = new char[TOKEN_LENGTH];
+        for (int i = TOKEN_LENGTH - 1; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (key & 31)];
+            key >>>= 5;
+        }
+        return new String(chars);
+    }
+
+    // Returns -1 for anything that is not a well-formed token
+    static long decode(String token) {
+        if (token == null || token.length() != TOKEN_LENGTH) return -1;
+        long key = 0;
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            int digit = digit(token.charAt(i));
+            if (digit == -1) return -1;
+            key = (key << 5) | digit;
+        }
+        return key == EMPTY ? -1 : key;
+    }
+
+    private static int digit(char c) {
+        return c < DIGITS.length ? DIGITS[c] : -1;
+    }
+}
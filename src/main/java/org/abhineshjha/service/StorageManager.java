@@ -0,0 +1,183 @@
+package org.abhineshjha.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Disk quota for uploadDir. An upload in progress first claims an upper
+// bound of its size; claims together may not exceed the quota, and one that
+// does not fit is refused with a hint when to retry. A claim is only the
+// client's word, so it evicts nothing. As the upload's bytes actually reach
+// the disk its reservation grows to cover them, and stored plus reserved
+// bytes are kept within the quota by evicting the oldest shares for exactly
+// those bytes. Once the blob is committed its bytes are counted as stored
+// and handed back by the reservation. Stored bytes are counted by the
+// BlobStore as blobs come and go; nothing here lists or stats the directory.
+public class StorageManager {
+    private static final long RETRY_UPLOADS_SECONDS = 5;    // In-flight uploads finish or fail soon
+    private static final long RETRY_DOWNLOADS_SECONDS = 60; // Shares being downloaded take longer
+    private static final long GROW_STEP = 1024 * 1024;      // Bytes an upload reserves ahead of its writes
+
+    private final BlobStore blobStore;
+    private final FileSharer fileSharer;
+    private final long quotaBytes; // 0 = no quota
+    private final AtomicLong claimed = new AtomicLong();  // Upper bounds of the uploads in progress
+    private final AtomicLong reserved = new AtomicLong(); // Bytes those uploads may have written
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong refusals = new AtomicLong();
+
+    // Space held for one upload. Closing it twice is harmless.
+    public class Reservation implements AutoCloseable {
+        public final long bytes;                       // The claim; the reservation never grows past it
+        private final AtomicLong held = new AtomicLong(); // Counted toward the quota
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        // Cover this many more bytes about to be written, evicting the
+        // oldest shares if stored and reserved bytes would pass the quota
+        public void grow(long more) throws StorageFullException {
+            if (quotaBytes <= 0) {
+                return;
+            }
+            while (true) {
+                long current = held.get();
+                long add = Math.min(more, bytes - current);
+                if (add <= 0 || released.get()) {
+                    return;
+                }
+                makeRoom(add);
+                if (held.compareAndSet(current, current + add)) {
+                    if (released.get()) {
+                        release(); // Closed meanwhile
+                    }
+                    return;
+                }
+                reserved.addAndGet(-add);
+            }
+        }
+
+        // Hand back the bytes written so far, now stored or discarded. The
+        // claim stays, so the upload can go on with its next file.
+        public void release() {
+            long current = held.getAndSet(0);
+            reserved.addAndGet(-current);
+        }
+
+        // Writes through to out, growing the reservation ahead of the bytes
+        public OutputStream track(OutputStream out) {
+            return new FilterOutputStream(out) {
+                private long written;
+                private long covered;
+
+                @Override
+                public void write(int b) throws IOException {
+                    cover(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    cover(len);
+                    out.write(b, off, len);
+                }
+
+                private void cover(int len) throws StorageFullException {
+                    written += len;
+                    if (written > covered) {
+                        long more = Math.max(written - covered, GROW_STEP);
+                        grow(more);
+                        covered += more;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                claimed.addAndGet(-bytes);
+                release();
+            }
+        }
+    }
+
+    // The upload does not fit. retryAfterSeconds is 0 when waiting cannot
+    // help, i.e. the upload is larger than the whole quota.
+    public static class StorageFullException extends IOException {
+        public final boolean temporary;     // Space is only held by uploads in progress
+        public final long retryAfterSeconds;
+
+        StorageFullException(String message, boolean temporary, long retryAfterSeconds) {
+            super(message);
+            this.temporary = temporary;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    public StorageManager(BlobStore blobStore, FileSharer fileSharer, long quotaBytes) {
+        this.blobStore = blobStore;
+        this.fileSharer = fileSharer;
+        this.quotaBytes = quotaBytes;
+    }
+
+    public Reservation reserve(long bytes) throws StorageFullException {
+        if (quotaBytes <= 0) {
+            return new Reservation(0);
+        }
+        if (bytes > quotaBytes) {
+            refusals.incrementAndGet();
+            throw new StorageFullException("Upload exceeds the storage quota", false, 0);
+        }
+        while (true) {
+            long current = claimed.get();
+            if (current + bytes > quotaBytes) {
+                refusals.incrementAndGet();
+                throw new StorageFullException("Storage busy: uploads in progress hold the space",
+                        true, RETRY_UPLOADS_SECONDS);
+            }
+            if (claimed.compareAndSet(current, current + bytes)) {
+                return new Reservation(bytes);
+            }
+        }
+    }
+
+    // Count this many bytes as reserved, evicting the oldest shares until
+    // stored plus reserved bytes fit the quota again
+    private void makeRoom(long bytes) throws StorageFullException {
+        if (reserved.addAndGet(bytes) + blobStore.storedBytes() <= quotaBytes) {
+            return;
+        }
+        evictions.addAndGet(fileSharer.evictOldest(this::fits));
+        if (!fits()) {
+            reserved.addAndGet(-bytes);
+            refusals.incrementAndGet();
+            throw new StorageFullException("Storage full: shares being downloaded hold the space",
+                    false, RETRY_DOWNLOADS_SECONDS);
+        }
+    }
+
+    private boolean fits() {
+        return blobStore.storedBytes() + reserved.get() <= quotaBytes;
+    }
+
+    public long quotaBytes() {
+        return quotaBytes;
+    }
+
+    public long reservedBytes() {
+        return reserved.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public long refusals() {
+        return refusals.get();
+    }
+}
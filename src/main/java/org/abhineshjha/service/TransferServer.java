@@ -0,0 +1,285 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.abhineshjha.utils.TimerWheel;
+
+// Serves every active share from one listening port on a single selector
+// thread. A peer connects, sends "<shareId> <token>\n" and receives
+//   Filename: <name>\n
+//   Length: <bytes>\n
+//   Digest: sha-256=<hex>\n   (if the file is in the BlobStore)
+//   \n
+// followed by the raw file bytes, which the peer can check against the
+// digest and length. Pending shares cost nothing here; only
+// open connections hold any state.
+public class TransferServer {
+    private static final int MAX_REQUEST_LINE = 256;
+    private static final long IDLE_TIMEOUT_MS = 30_000; // Drop connections that stall for 30 seconds
+    private static final long TRANSFER_CHUNK = 1024 * 1024; // Bytes handed to transferTo per write event
+
+    private final FileSharer fileSharer;
+    // Takes the release of finished readers, which may write the journal, off the selector thread
+    private final TimerWheel timerWheel;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread selectorThread;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile boolean running;
+
+    // Per-connection state, attached to the selection key
+    private static class Connection {
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LINE);
+        ByteBuffer header;
+        Share share;        // Held as a reader until the connection closes
+        FileChannel file;   // The share's file, opened for this connection
+        long position;
+        long size;
+        int shareId;
+        boolean downloaded; // The whole file went out, so the claimed download is spent
+        long lastActivity = System.currentTimeMillis();
+    }
+
+    public TransferServer(FileSharer fileSharer, TimerWheel timerWheel, int port) throws IOException {
+        this.fileSharer = fileSharer;
+        this.timerWheel = timerWheel;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::run, "transfer-selector");
+    }
+
+    public void start() {
+        running = true;
+        selectorThread.start();
+        System.out.println("Transfer server started on port " + getPort());
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Transfer server stopped");
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Transfer connection error: " + e.getMessage());
+                        close(key);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            } catch (IOException e) {
+                System.err.println("Transfer server error: " + e.getMessage());
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing transfer selector " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+            openConnections.incrementAndGet();
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.request) == -1) {
+            close(key);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+
+        ByteBuffer request = connection.request;
+        for (int i = 0; i < request.position(); i++) {
+            if (request.get(i) == '\n') {
+                String line = new String(request.array(), 0, i, StandardCharsets.US_ASCII).trim();
+                route(key, connection, line);
+                return;
+            }
+        }
+        if (!request.hasRemaining()) {
+            reject(key, connection, "Request line too long");
+        }
+    }
+
+    // Resolve "<shareId> <token>" to a file and start sending it
+    private void route(SelectionKey key, Connection connection, String line) throws IOException {
+        String[] parts = line.split("\\s+");
+        int shareId;
+        try {
+            shareId = parts.length == 2 ? Integer.parseInt(parts[0]) : -1;
+        } catch (NumberFormatException e) {
+            shareId = -1;
+        }
+        if (shareId == -1 || !fileSharer.validateToken(shareId, parts[1])) {
+            reject(key, connection, "Invalid share or token");
+            return;
+        }
+
+        Share share = fileSharer.getShare(shareId);
+        if (share != null && share.isBundle()) {
+            // Bundles are zipped on the fly, which only the HTTP download does
+            reject(key, connection, "Multi-file shares are only available over HTTP");
+            return;
+        }
+        if (share != null && share.isRelay()) {
+            // So are relays, which stream into one HTTP response
+            reject(key, connection, "Relay shares are only available over HTTP");
+            return;
+        }
+        share = fileSharer.acquireReader(shareId);
+        if (share == null) {
+            reject(key, connection, "File no longer available");
+            return;
+        }
+        connection.share = share;
+        if (!new File(share.filePath).isFile()) {
+            reject(key, connection, "File no longer available");
+            return;
+        }
+
+        connection.file = share.openChannel();
+        connection.size = connection.file.size();
+        connection.shareId = shareId;
+        String header = "Filename: " + share.fileName + "\nLength: " + connection.size + "\n"
+                + (share.digest != null ? "Digest: sha-256=" + share.digest + "\n" : "") + "\n";
+        connection.header = ByteBuffer.wrap(header.getBytes(StandardCharsets.UTF_8));
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void reject(SelectionKey key, Connection connection, String reason) {
+        connection.header = ByteBuffer.wrap(("Error: " + reason + "\n").getBytes(StandardCharsets.US_ASCII));
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        connection.lastActivity = System.currentTimeMillis();
+
+        if (connection.header.hasRemaining()) {
+            channel.write(connection.header);
+            if (connection.header.hasRemaining()) return;
+        }
+        if (connection.file == null) {
+            close(key);
+            return;
+        }
+
+        long remaining = connection.size - connection.position;
+        if (remaining > 0) {
+            long sent = connection.file.transferTo(
+                    connection.position, Math.min(TRANSFER_CHUNK, remaining), channel);
+            // The file shrank since its length was sent: the client gets a short body
+            if (sent == 0 && connection.position >= connection.file.size()) {
+                System.err.println("Share " + connection.shareId + " truncated at " + connection.position
+                        + " of " + connection.size + " bytes");
+                close(key);
+                return;
+            }
+            connection.position += sent;
+        }
+        if (connection.position >= connection.size) {
+            System.out.println("Share " + connection.shareId + " sent to " + channel.getRemoteAddress());
+            connection.downloaded = true;
+            close(key);
+        }
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection
+                    && now - ((Connection) attachment).lastActivity > IDLE_TIMEOUT_MS) {
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket " + e.getMessage());
+        }
+        if (key.attachment() instanceof Connection) {
+            Connection connection = (Connection) key.attachment();
+            key.attach(null);
+            openConnections.decrementAndGet();
+            if (connection.file != null) {
+                try {
+                    connection.file.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing share file " + e.getMessage());
+                }
+            }
+            if (connection.share != null) {
+                Share share = connection.share;
+                boolean downloaded = connection.downloaded;
+                timerWheel.schedule(() -> fileSharer.releaseReader(share, downloaded), 0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
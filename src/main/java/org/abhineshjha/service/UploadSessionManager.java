@@ -0,0 +1,245 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.utils.RangeSet;
+import org.abhineshjha.utils.TimerWheel;
+
+// Tracks resumable, chunked uploads. Each session owns a ".part" file;
+// chunks are written at their own offset with positional writes, so
+// they may arrive in any order and in parallel. Received ranges are recorded
+// only after a chunk was fully written, which lets a client ask what is
+// still missing after a reconnect and send just that. A session with no
+// chunk for idleTimeoutMillis is aborted and its file deleted.
+// Chunks that arrive in order are hashed while they are written, so
+// completing the upload only reads back what was not. If chunks overlapped,
+// a retry say, the hashed bytes may not be the ones that ended up in the
+// file, and the whole file is hashed at the end instead.
+public class UploadSessionManager {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final String uploadDir;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final TimerWheel timerWheel;
+    private final long idleTimeoutMillis;
+
+    public static class Session {
+        public final String id;
+        public final String fileName;
+        public final long size;
+        public final StorageManager.Reservation reservation; // Disk space for the whole file
+        private final File partFile;
+        private final FileChannel channel;
+        private final RangeSet received = new RangeSet();
+        private int activeWrites;
+        private boolean closed;
+        private final MessageDigest digest = BlobStore.newDigest();
+        private long hashed;     // Bytes [0, hashed) are in digest
+        private boolean hashing; // A chunk is extending digest
+        private long written;    // Bytes written by all chunks, overlaps counted twice
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile TimerWheel.Timeout expiry;
+
+        private Session(String id, String fileName, long size, StorageManager.Reservation reservation,
+                        File partFile, FileChannel channel) {
+            this.id = id;
+            this.fileName = fileName;
+            this.size = size;
+            this.reservation = reservation;
+            this.partFile = partFile;
+            this.channel = channel;
+        }
+
+        public long receivedBytes() {
+            return received.coveredBytes();
+        }
+
+        public List<long[]> receivedRanges() {
+            return received.toList();
+        }
+
+        private synchronized boolean beginWrite() {
+            if (closed) return false;
+            activeWrites++;
+            return true;
+        }
+
+        private synchronized void endWrite(long bytes) {
+            activeWrites--;
+            written += bytes;
+        }
+
+        // Claim the digest for a chunk that continues where it left off
+        private synchronized boolean startHashing(long offset) {
+            if (hashing || offset != hashed) return false;
+            hashing = true;
+            return true;
+        }
+
+        private synchronized void hash(byte[] buffer, int length) {
+            digest.update(buffer, 0, length);
+            hashed += length;
+        }
+
+        private synchronized void endHashing() {
+            hashing = false;
+        }
+
+        // The digest of the file's first hashedBytes() bytes, or null if
+        // chunks overlapped. For BlobStore.commitFile once the session is complete.
+        public synchronized MessageDigest streamedDigest() {
+            return written == size ? digest : null;
+        }
+
+        public synchronized long hashedBytes() {
+            return hashed;
+        }
+    }
+
+    public UploadSessionManager(String uploadDir, TimerWheel timerWheel, long idleTimeoutMillis) {
+        this.uploadDir = uploadDir;
+        this.timerWheel = timerWheel;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    // The session takes over the reservation and closes it if aborted; on
+    // completion that is left to the caller, once the file is stored
+    public Session create(String fileName, long size, StorageManager.Reservation reservation) throws IOException {
+        String id = UUID.randomUUID().toString();
+        File partFile = new File(uploadDir, id + ".part");
+        FileChannel channel = FileChannel.open(partFile.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Session session = new Session(id, fileName, size, reservation, partFile, channel);
+        scheduleExpiry(session, idleTimeoutMillis);
+        sessions.put(id, session);
+        System.out.println("Upload session " + id + " started for " + fileName + " (" + size + " bytes)");
+        return session;
+    }
+
+    public Session get(String id) {
+        return id == null ? null : sessions.get(id);
+    }
+
+    public int sessionCount() {
+        return sessions.size();
+    }
+
+    // Bytes held by the part files of open sessions
+    public long partBytes() {
+        long total = 0;
+        for (Session session : sessions.values()) {
+            total += session.partFile.length();
+        }
+        return total;
+    }
+
+    // Write one chunk starting at offset. Returns the number of bytes written.
+    public long writeChunk(Session session, long offset, InputStream body) throws IOException {
+        if (offset < 0 || offset > session.size) {
+            throw new IllegalArgumentException("Offset " + offset + " outside of file size " + session.size);
+        }
+        if (!session.beginWrite()) {
+            throw new IllegalStateException("Upload session is closed");
+        }
+        boolean hashing = session.startHashing(offset);
+        long position = offset;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            int read;
+            while ((read = body.read(buffer.array(), 0, buffer.capacity())) != -1) {
+                if (position + read > session.size) {
+                    throw new IllegalArgumentException("Chunk extends past declared size " + session.size);
+                }
+                // Counted toward the disk quota before it reaches the disk
+                session.reservation.grow(read);
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    position += session.channel.write(buffer, position);
+                }
+                if (hashing) {
+                    session.hash(buffer.array(), read);
+                }
+            }
+            session.received.add(offset, position);
+            return position - offset;
+        } finally {
+            if (hashing) {
+                session.endHashing();
+            }
+            // Only a timestamp per chunk; the timeout re-arms itself when it fires
+            session.lastActivity = System.currentTimeMillis();
+            session.endWrite(position - offset);
+        }
+    }
+
+    private void scheduleExpiry(Session session, long delay) {
+        session.expiry = timerWheel.schedule(() -> checkIdle(session), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the timer wheel thread
+    private void checkIdle(Session session) {
+        long idle = System.currentTimeMillis() - session.lastActivity;
+        synchronized (session) {
+            if (session.closed) return;
+            if (idle < idleTimeoutMillis || session.activeWrites > 0) {
+                // Chunks arrived meanwhile, or one is still being written
+                scheduleExpiry(session, idle < idleTimeoutMillis ? idleTimeoutMillis - idle : idleTimeoutMillis);
+                return;
+            }
+        }
+        System.out.println("Upload session " + session.id + " idle for " + idle / 1000 + "s");
+        abort(session);
+    }
+
+    // Close the session and return the finished file. Fails if bytes are
+    // missing or chunks are still being written.
+    public File complete(Session session) throws IOException {
+        synchronized (session) {
+            if (session.closed) {
+                throw new IllegalStateException("Upload session is closed");
+            }
+            if (session.activeWrites > 0) {
+                throw new IllegalStateException("Chunks are still being written");
+            }
+            if (!session.received.coversAll(session.size)) {
+                throw new IllegalStateException("Upload incomplete: " + session.receivedBytes() + " of "
+                        + session.size + " bytes received");
+            }
+            session.closed = true;
+        }
+        sessions.remove(session.id);
+        session.expiry.cancel();
+        session.channel.close();
+        System.out.println("Upload session " + session.id + " completed");
+        return session.partFile;
+    }
+
+    public void abort(Session session) {
+        synchronized (session) {
+            if (session.closed) return;
+            session.closed = true;
+        }
+        sessions.remove(session.id);
+        session.expiry.cancel();
+        try {
+            session.channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing upload session file " + e.getMessage());
+        }
+        if (!session.partFile.delete()) {
+            System.err.println("Failed to delete file: " + session.partFile.getName());
+        }
+        session.reservation.close();
+        System.out.println("Upload session " + session.id + " aborted");
+    }
+}
@@ -0,0 +1,118 @@
+package org.abhineshjha.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Searches byte arrays for a fixed pattern, such as a multipart delimiter.
+// Patterns of eight bytes or more use Boyer-Moore-Horspool: the byte under
+// the end of the window decides how far to shift, so on typical data only
+// one byte in every few is looked at. Shorter patterns are found by scanning
+// for their first byte a word (eight bytes) at a time. Candidate windows are
+// compared a word at a time as well.
+public final class BoundaryScanner {
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    // Below this length a Horspool shift is not worth more than a word scan
+    private static final int MIN_HORSPOOL_LENGTH = 8;
+
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    public BoundaryScanner(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Empty search pattern");
+        }
+        this.pattern = pattern.clone();
+        int m = pattern.length;
+        Arrays.fill(shift, m);
+        for (int i = 0; i < m - 1; i++) {
+            shift[pattern[i] & 0xff] = m - 1 - i;
+        }
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    // Index of the first match that lies entirely within data[from, to), or -1
+    public int indexOf(byte[] data, int from, int to) {
+        int m = pattern.length;
+        if (m < MIN_HORSPOOL_LENGTH) {
+            return scanFirstByte(data, from, to);
+        }
+        byte last = pattern[m - 1];
+        int end = to - m;
+        int i = from;
+        while (i <= end) {
+            byte b = data[i + m - 1];
+            if (b == last && regionMatches(data, i, m - 1)) {
+                return i;
+            }
+            i += shift[b & 0xff];
+        }
+        return -1;
+    }
+
+    // Start of the longest tail of data[from, to) that is a proper prefix of
+    // the pattern, or to if there is none. Only call this when indexOf found
+    // nothing: bytes before the returned index cannot belong to a match that
+    // continues in the next chunk, so a streaming caller can pass them on.
+    public int partialMatch(byte[] data, int from, int to) {
+        for (int i = Math.max(from, to - pattern.length + 1); i < to; i++) {
+            if (data[i] == pattern[0] && regionMatches(data, i, to - i)) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private int scanFirstByte(byte[] data, int from, int to) {
+        int end = to - pattern.length;
+        long first = (pattern[0] & 0xffL) * ONES;
+        int i = from;
+        while (i <= end) {
+            if (i + 8 <= to) {
+                // Bytes equal to the first pattern byte become zero; the
+                // lowest flagged byte is exact, higher ones may be false hits
+                long word = (long) LONGS.get(data, i) ^ first;
+                long zeros = (word - ONES) & ~word & HIGHS;
+                if (zeros == 0) {
+                    i += 8;
+                    continue;
+                }
+                i += Long.numberOfTrailingZeros(zeros) >>> 3;
+            } else if (data[i] != pattern[0]) {
+                i++;
+                continue;
+            }
+            if (i > end) {
+                return -1;
+            }
+            if (regionMatches(data, i, pattern.length)) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    // True if data[offset, offset + length) equals the start of the pattern
+    private boolean regionMatches(byte[] data, int offset, int length) {
+        int j = 0;
+        for (; j + 8 <= length; j += 8) {
+            if ((long) LONGS.get(data, offset + j) != (long) LONGS.get(pattern, j)) {
+                return false;
+            }
+        }
+        for (; j < length; j++) {
+            if (data[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package org.abhineshjha.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Fixed-size byte buffers shared by all uploads. At most maxBuffers are
+// handed out at once, which bounds the memory held by writes in flight: a
+// caller that finds the pool empty waits for a buffer to come back, for up
+// to waitMillis. Released buffers are kept for reuse rather than left to the GC.
+public class BufferPool {
+    private final int bufferSize;
+    private final long waitMillis;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    // No buffer came back in time: every one is held by a stalled or slow upload
+    public static class ExhaustedException extends IOException {
+        ExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    public BufferPool(int bufferSize, int maxBuffers, long waitMillis) {
+        this.bufferSize = bufferSize;
+        this.waitMillis = waitMillis;
+        this.permits = new Semaphore(maxBuffers);
+    }
+
+    public byte[] acquire() throws IOException {
+        try {
+            if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                throw new ExhaustedException("No upload buffer free for " + waitMillis + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a buffer");
+        }
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    public void release(byte[] buffer) {
+        free.offer(buffer);
+        permits.release();
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    // Buffers that can be handed out without waiting
+    public int available() {
+        return permits.availablePermits();
+    }
+}
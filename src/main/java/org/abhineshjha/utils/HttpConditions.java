@@ -0,0 +1,24 @@
+package org.abhineshjha.utils;
+
+// Conditional request headers (RFC 9110 section 13)
+public class HttpConditions {
+
+    // True if an If-None-Match header lists the entity tag, or is "*", in
+    // which case a GET is answered with 304. The comparison is weak: a W/
+    // prefix on either side is ignored.
+    public static boolean noneMatchHits(String header, String etag) {
+        if (header == null || etag == null) return false;
+        String opaque = opaqueTag(etag);
+        for (String entry : header.split(",")) {
+            String tag = entry.trim();
+            if (tag.equals("*") || opaqueTag(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
@@ -0,0 +1,37 @@
+package org.abhineshjha.utils;
+
+// Parser for the HTTP Accept-Encoding request header (RFC 9110)
+public class HttpEncodings {
+
+    // True if the client takes a gzip coded response. An explicit "gzip"
+    // entry decides over "*", and a q-value of 0 means "not acceptable".
+    public static boolean acceptsGzip(String header) {
+        if (header == null) return false;
+        double gzip = -1;
+        double wildcard = -1;
+        for (String entry : header.split(",")) {
+            String[] params = entry.split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (!coding.equals("gzip") && !coding.equals("x-gzip") && !coding.equals("*")) {
+                continue;
+            }
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.regionMatches(true, 0, "q=", 0, 2)) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("*")) {
+                wildcard = q;
+            } else {
+                gzip = Math.max(gzip, q);
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : wildcard > 0;
+    }
+}
@@ -0,0 +1,49 @@
+package org.abhineshjha.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Parser for the HTTP Range request header (RFC 9110, byte ranges only)
+public class HttpRanges {
+    // More ranges than this in one request is treated as abuse and ignored
+    private static final int MAX_RANGES = 16;
+
+    // Returns the requested ranges as {first, last} (inclusive) pairs clamped to
+    // the representation size, an empty list when none of them can be
+    // satisfied (416), or null when the header should be ignored and the full
+    // representation sent.
+    public static List<long[]> parse(String header, long size) {
+        if (header == null || size == 0) return null;
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            try {
+                long first;
+                long last;
+                if (dash == 0) {
+                    // Suffix range: the final N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if (first < 0 || last < first) return null;
+                    if (first >= size) continue;
+                    last = Math.min(last, size - 1);
+                }
+                ranges.add(new long[] {first, last});
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (ranges.size() > MAX_RANGES) return null;
+        return ranges;
+    }
+}
@@ -0,0 +1,61 @@
+package org.abhineshjha.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram with fixed buckets. Every bucket is a LongAdder, so
+// recording is a short scan over the bounds and one striped increment: no
+// lock, and no shared cache line for concurrent transfers to fight over.
+// A reader may see a recording in its bucket before it shows up in the sum;
+// Prometheus tolerates that.
+public class LatencyHistogram {
+    // Upper bounds in seconds, from a small request to a long upload
+    private static final double[] BOUNDS = {
+        0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600
+    };
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUND_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1]; // Last one is +Inf
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    // Upper bound of every bucket but the last (+Inf), in seconds
+    public static double[] bounds() {
+        return BOUNDS.clone();
+    }
+
+    // Number of recordings at or below each bound; the last entry is the total
+    public long[] cumulativeCounts() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    public double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
@@ -0,0 +1,133 @@
+package org.abhineshjha.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server metrics, rendered in the Prometheus text exposition format.
+// Counters are LongAdders and histograms are LatencyHistograms, so the
+// transfer paths record without locks. Gauges are read from their owners
+// only when a scrape asks for them.
+public class Metrics {
+    public final LatencyHistogram uploadLatency = new LatencyHistogram();
+    public final LatencyHistogram downloadLatency = new LatencyHistogram();
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder bytesSent = new LongAdder();
+    public final LongAdder inFlight = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    // A value read from its owner at scrape time, reported as a gauge or,
+    // if it only ever grows, as a counter
+    private static class Gauge {
+        final String name;
+        final String labels;
+        final String help;
+        final String type;
+        final LongSupplier value;
+        final boolean nanos; // value is in nanoseconds, reported in seconds
+
+        Gauge(String name, String labels, String help, String type, LongSupplier value, boolean nanos) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.nanos = nanos;
+        }
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        gauge(name, "", help, value);
+    }
+
+    // Labels are given pre-rendered, e.g. dir="blobs". Gauges that share a
+    // name must be registered one after the other.
+    public void gauge(String name, String labels, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, labels, help, "gauge", value, false));
+    }
+
+    // A counter kept by its owner, e.g. cache hits
+    public void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, "", help, "counter", value, false));
+    }
+
+    // A counter of nanoseconds kept by its owner, reported in seconds
+    public void secondsCounter(String name, String help, LongSupplier nanos) {
+        gauges.add(new Gauge(name, "", help, "counter", nanos, true));
+    }
+
+    // Count a request answered with an error status
+    public void rejected(int status) {
+        rejections.computeIfAbsent(status, key -> new LongAdder()).increment();
+    }
+
+    public long rejections(int status) {
+        LongAdder count = rejections.get(status);
+        return count == null ? 0 : count.sum();
+    }
+
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        histogram(out, "p2p_upload_duration_seconds",
+                "Time to receive and store a successful upload", uploadLatency);
+        histogram(out, "p2p_download_duration_seconds",
+                "Time to send a successful download", downloadLatency);
+        header(out, "p2p_received_bytes_total", "Request body bytes received", "counter");
+        sample(out, "p2p_received_bytes_total", "", bytesReceived.sum());
+        header(out, "p2p_sent_bytes_total", "Response body bytes sent", "counter");
+        sample(out, "p2p_sent_bytes_total", "", bytesSent.sum());
+        header(out, "p2p_requests_in_flight", "HTTP exchanges being handled", "gauge");
+        sample(out, "p2p_requests_in_flight", "", inFlight.sum());
+
+        header(out, "p2p_rejected_requests_total", "Requests answered with an error status", "counter");
+        Map<Integer, LongAdder> byStatus = new TreeMap<>(rejections);
+        for (Map.Entry<Integer, LongAdder> entry : byStatus.entrySet()) {
+            sample(out, "p2p_rejected_requests_total", "status=\"" + entry.getKey() + "\"", entry.getValue().sum());
+        }
+
+        String previous = null;
+        for (Gauge gauge : gauges) {
+            if (!gauge.name.equals(previous)) {
+                header(out, gauge.name, gauge.help, gauge.type);
+                previous = gauge.name;
+            }
+            if (gauge.nanos) {
+                out.append(gauge.name).append(' ').append(gauge.value.getAsLong() / 1e9).append('\n');
+            } else {
+                sample(out, gauge.name, gauge.labels, gauge.value.getAsLong());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, help, "histogram");
+        double[] bounds = LatencyHistogram.bounds();
+        long[] counts = histogram.cumulativeCounts();
+        for (int i = 0; i < bounds.length; i++) {
+            sample(out, name + "_bucket", "le=\"" + bounds[i] + "\"", counts[i]);
+        }
+        long total = counts[counts.length - 1];
+        sample(out, name + "_bucket", "le=\"+Inf\"", total);
+        out.append(name).append("_sum ").append(histogram.sumSeconds()).append('\n');
+        sample(out, name + "_count", "", total);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+}
@@ -1,87 +1,297 @@
-package org.abhineshjha.utils;
-
-public class MultiParser {
-    private final byte[] data;
-    private final String boundary;
-
-    public MultiParser(byte[] data, String boundary) {
-        this.data = data;
-        this.boundary = boundary;
-    }
-
-    public ParseResult parse() {
-        try {
-            String dataAsString = new String(data);
-            String fileNameMarker = "filename=\"";
-            int fileNameStart = dataAsString.indexOf(fileNameMarker);
-            if (fileNameStart == -1) return null;
-
-            fileNameStart += fileNameMarker.length();
-            int fileNameEnd = dataAsString.indexOf("\"", fileNameStart);
-            if (fileNameEnd == -1) return null;
-            String filename = dataAsString.substring(fileNameStart, fileNameEnd);
-
-            String contentTypeMaker = "Content-Type: ";
-            int contentTypeStart = dataAsString.indexOf(contentTypeMaker, fileNameEnd);
-            String contentType = "application/octet-stream";
-            if (contentTypeStart != -1) {
-                contentTypeStart += contentTypeMaker.length();
-                int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                if (contentTypeEnd > contentTypeStart) {
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
-                }
-            }
-
-            String headerEndMarker = "\r\n\r\n";
-            int headerEnd = dataAsString.indexOf(headerEndMarker);
-            if (headerEnd == -1) return null;
-
-            int contentStart = headerEnd + headerEndMarker.length();
-
-            byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-            int contentEnd = findSequence(data, boundaryBytes, contentStart);
-
-            if (contentEnd == -1) {
-                boundaryBytes = ("\r\n--" + boundary).getBytes();
-                contentEnd = findSequence(data, boundaryBytes, contentStart);
-            }
-            if (contentEnd == -1 || contentEnd <= contentStart) {
-                return null;
-            }
-
-            byte[] fileContent = new byte[contentEnd - contentStart];
-            System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
-
-            return new ParseResult(filename, fileContent, contentType);
-
-        } catch (Exception ex) {
-            System.err.println("Error parsing multipart data " + ex.getMessage());
-            return null;
-        }
-    }
-
-    public static class ParseResult {
-        public final String fileName;
-        public final byte[] fileContent;
-        public final String contentType;
-
-        public ParseResult(String fileName, byte[] fileContent, String contentType) {
-            this.fileName = fileName;
-            this.fileContent = fileContent;
-            this.contentType = contentType;
-        }
-    }
-
-    private static int findSequence(byte[] data, byte[] sequence, int startPosition) {
-        outer:
-        for (int i = startPosition; i < data.length - sequence.length; i++) {
-            for (int j = 0; j < sequence.length; j++) {
-                if (data[i + j] != sequence[j]) {
-                    continue outer;
-                }
-            }
-            return i;
-        }
-        return -1;
-    }
-}
+package org.abhineshjha.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class MultiParser {
+    // Size of the window used when streaming a request body
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Largest header block we accept for a single part
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final byte[] data;
+    private final String boundary;
+
+    // Streaming mode state (only used when constructed with an InputStream)
+    private final InputStream input;
+    private final BoundaryScanner delimiter;  // "\r\n--" + boundary
+    private final BoundaryScanner firstDelimiter; // "--" + boundary
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean started;
+    private boolean finished;
+    private boolean partOpen;
+
+    public MultiParser(byte[] data, String boundary) {
+        this.data = data;
+        this.boundary = boundary;
+        this.input = null;
+        this.delimiter = null;
+        this.firstDelimiter = null;
+        this.buffer = null;
+    }
+
+    // Streaming mode: parts are read from the stream one at a time and the
+    // body of each part is copied out in CHUNK_SIZE pieces, so memory use does
+    // not depend on the size of the upload.
+    public MultiParser(InputStream input, String boundary) {
+        this.data = null;
+        this.boundary = boundary;
+        this.input = input;
+        this.delimiter = new BoundaryScanner(("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII));
+        this.firstDelimiter = new BoundaryScanner(("--" + boundary).getBytes(StandardCharsets.US_ASCII));
+        this.buffer = new byte[CHUNK_SIZE + delimiter.length()];
+    }
+
+    public ParseResult parse() {
+        try {
+            // Only the headers of the first part are decoded, not the whole body
+            int headerEnd = new BoundaryScanner(HEADER_END).indexOf(data, 0, data.length);
+            if (headerEnd == -1) return null;
+            String dataAsString = new String(data, 0, headerEnd + 2);
+            String fileNameMarker = "filename=\"";
+            int fileNameStart = dataAsString.indexOf(fileNameMarker);
+            if (fileNameStart == -1) return null;
+
+            fileNameStart += fileNameMarker.length();
+            int fileNameEnd = dataAsString.indexOf("\"", fileNameStart);
+            if (fileNameEnd == -1) return null;
+            String filename = dataAsString.substring(fileNameStart, fileNameEnd);
+
+            String contentTypeMaker = "Content-Type: ";
+            int contentTypeStart = dataAsString.indexOf(contentTypeMaker, fileNameEnd);
+            String contentType = "application/octet-stream";
+            if (contentTypeStart != -1) {
+                contentTypeStart += contentTypeMaker.length();
+                int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
+                if (contentTypeEnd > contentTypeStart) {
+                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
+                }
+            }
+
+            int contentStart = headerEnd + HEADER_END.length;
+
+            // The first delimiter after the content ends the part, whether it
+            // is the closing one or starts another part
+            BoundaryScanner scanner = new BoundaryScanner(("\r\n--" + boundary).getBytes());
+            int contentEnd = scanner.indexOf(data, contentStart, data.length);
+            if (contentEnd == -1 || contentEnd <= contentStart) {
+                return null;
+            }
+
+            byte[] fileContent = new byte[contentEnd - contentStart];
+            System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
+
+            return new ParseResult(filename, fileContent, contentType);
+
+        } catch (Exception ex) {
+            System.err.println("Error parsing multipart data " + ex.getMessage());
+            return null;
+        }
+    }
+
+    // Advance to the next part and return its headers, or null when the
+    // closing boundary has been reached. Any unread body of the previous part
+    // is skipped.
+    public Part nextPart() throws IOException {
+        if (finished) return null;
+        if (!started) {
+            skipPreamble();
+            started = true;
+        } else if (partOpen) {
+            transferPart(OutputStream.nullOutputStream(), Long.MAX_VALUE);
+        }
+        if (finished) return null;
+
+        String name = null;
+        String fileName = null;
+        String contentType = "application/octet-stream";
+        int headerBytes = 0;
+        String line;
+        while (!(line = readHeaderLine()).isEmpty()) {
+            headerBytes += line.length() + 2;
+            if (headerBytes > MAX_HEADER_SIZE) {
+                throw new MultipartException("Multipart header block too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon == -1) continue;
+            String headerName = line.substring(0, colon).trim();
+            String headerValue = line.substring(colon + 1).trim();
+            if (headerName.equalsIgnoreCase("Content-Disposition")) {
+                name = dispositionParam(headerValue, "name");
+                fileName = dispositionParam(headerValue, "filename");
+            } else if (headerName.equalsIgnoreCase("Content-Type") && !headerValue.isEmpty()) {
+                contentType = headerValue;
+            }
+        }
+        partOpen = true;
+        return new Part(name, fileName, contentType);
+    }
+
+    // Copy the body of the current part to out. Throws PartTooLargeException
+    // as soon as more than maxBytes have been seen.
+    public long transferPart(OutputStream out, long maxBytes) throws IOException {
+        if (!partOpen) {
+            throw new IllegalStateException("No multipart part is open");
+        }
+        long total = 0;
+        while (true) {
+            int idx = delimiter.indexOf(buffer, pos, limit);
+            // Without a match, hold back only a tail that could still be the
+            // start of a delimiter continuing in the next read
+            int end = idx != -1 ? idx : delimiter.partialMatch(buffer, pos, limit);
+            int count = end - pos;
+            if (count > 0) {
+                total += count;
+                if (total > maxBytes) {
+                    throw new PartTooLargeException(maxBytes);
+                }
+                out.write(buffer, pos, count);
+                pos = end;
+            }
+            if (idx != -1) {
+                pos += delimiter.length();
+                partOpen = false;
+                afterDelimiter();
+                return total;
+            }
+            if (eof) {
+                throw new MultipartException("Unexpected end of multipart body");
+            }
+            fill();
+        }
+    }
+
+    // The first delimiter is not necessarily preceded by CRLF, so search for
+    // "--boundary" and drop everything before it. At most MAX_HEADER_SIZE
+    // bytes are dropped: a body that does not open with a delimiter is
+    // refused rather than read to the end in search of one.
+    private void skipPreamble() throws IOException {
+        long skipped = 0;
+        while (true) {
+            int idx = firstDelimiter.indexOf(buffer, pos, limit);
+            int keep = idx != -1 ? idx : firstDelimiter.partialMatch(buffer, pos, limit);
+            skipped += keep - pos;
+            pos = keep;
+            if (skipped > MAX_HEADER_SIZE) {
+                throw new MultipartException("Multipart boundary not found");
+            }
+            if (idx != -1) {
+                pos = idx + firstDelimiter.length();
+                afterDelimiter();
+                return;
+            }
+            if (eof) {
+                throw new MultipartException("Multipart boundary not found");
+            }
+            fill();
+        }
+    }
+
+    // A delimiter is followed either by "--" (end of body) or by the rest of
+    // the boundary line.
+    private void afterDelimiter() throws IOException {
+        ensure(2);
+        if (limit - pos >= 2 && buffer[pos] == '-' && buffer[pos + 1] == '-') {
+            pos += 2;
+            finished = true;
+            return;
+        }
+        readHeaderLine();
+    }
+
+    private String readHeaderLine() throws IOException {
+        while (true) {
+            for (int i = pos; i + 1 < limit; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+                    pos = i + 2;
+                    return line;
+                }
+            }
+            if (limit - pos >= MAX_HEADER_SIZE) {
+                throw new MultipartException("Multipart header line too long");
+            }
+            if (eof) {
+                throw new MultipartException("Unexpected end of multipart headers");
+            }
+            fill();
+        }
+    }
+
+    private void ensure(int count) throws IOException {
+        while (limit - pos < count && !eof) {
+            fill();
+        }
+    }
+
+    // Move unread bytes to the front of the buffer and read more from the stream
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private static String dispositionParam(String header, String param) {
+        for (String token : header.split(";")) {
+            String trimmed = token.trim();
+            int eq = trimmed.indexOf('=');
+            if (eq == -1 || !trimmed.substring(0, eq).trim().equalsIgnoreCase(param)) continue;
+            String value = trimmed.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    public static class ParseResult {
+        public final String fileName;
+        public final byte[] fileContent;
+        public final String contentType;
+
+        public ParseResult(String fileName, byte[] fileContent, String contentType) {
+            this.fileName = fileName;
+            this.fileContent = fileContent;
+            this.contentType = contentType;
+        }
+    }
+
+    public static class Part {
+        public final String name;
+        public final String fileName;
+        public final String contentType;
+
+        public Part(String name, String fileName, String contentType) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+        }
+    }
+
+    public static class MultipartException extends IOException {
+        public MultipartException(String message) {
+            super(message);
+        }
+    }
+
+    public static class PartTooLargeException extends IOException {
+        public PartTooLargeException(long maxBytes) {
+            super("Part exceeds " + maxBytes + " bytes");
+        }
+    }
+}
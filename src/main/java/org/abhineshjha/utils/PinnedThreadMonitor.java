@@ -0,0 +1,70 @@
+package org.abhineshjha.utils;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+// Counts virtual threads that pin their carrier (blocking inside synchronized
+// or native code) and virtual threads that could not be scheduled, using the
+// JDK's own JFR events. A steady stream of pins means a transfer path is
+// holding carriers and concurrency is again bounded by the carrier count.
+public class PinnedThreadMonitor {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String SUBMIT_FAILED_EVENT = "jdk.VirtualThreadSubmitFailed";
+
+    private final LongAdder pinnedCount = new LongAdder();
+    private final LongAdder pinnedNanos = new LongAdder();
+    private final LongAdder submitFailures = new LongAdder();
+    private RecordingStream stream;
+
+    public synchronized void start(Duration threshold) {
+        if (stream != null) return;
+        stream = new RecordingStream();
+        stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+        stream.enable(SUBMIT_FAILED_EVENT);
+        stream.onEvent(PINNED_EVENT, this::onPinned);
+        stream.onEvent(SUBMIT_FAILED_EVENT, event -> {
+            submitFailures.increment();
+            System.err.println("Virtual thread submit failed: " + event.getString("exceptionMessage"));
+        });
+        stream.startAsync();
+        System.out.println("Monitoring virtual thread pinning above " + threshold.toMillis() + "ms");
+    }
+
+    public synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinnedCount.increment();
+        pinnedNanos.add(event.getDuration().toNanos());
+        String where = "unknown";
+        if (event.getStackTrace() != null) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                if (frame.isJavaFrame()) {
+                    where = frame.getMethod().getType().getName() + "." + frame.getMethod().getName();
+                    break;
+                }
+            }
+        }
+        System.err.println("Virtual thread pinned for " + event.getDuration().toMillis() + "ms in " + where);
+    }
+
+    public long getPinnedCount() {
+        return pinnedCount.sum();
+    }
+
+    public long getPinnedNanos() {
+        return pinnedNanos.sum();
+    }
+
+    public long getSubmitFailures() {
+        return submitFailures.sum();
+    }
+}
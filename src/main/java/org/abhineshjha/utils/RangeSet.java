@@ -0,0 +1,58 @@
+package org.abhineshjha.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Set of half-open byte ranges [start, end). Overlapping and adjacent ranges
+// are merged on insert, so the set stays small even when a file is fetched
+// or written in many pieces.
+public class RangeSet {
+    private final TreeMap<Long, Long> ranges = new TreeMap<>(); // start -> end (exclusive)
+    private long covered;
+
+    public synchronized void add(long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            if (before.getValue() >= end) return;
+            start = before.getKey();
+            covered -= before.getValue() - before.getKey();
+            ranges.remove(before.getKey());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            covered -= next.getValue() - next.getKey();
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+        covered += end - start;
+    }
+
+    // True when every byte of [0, length) is in the set
+    public synchronized boolean coversAll(long length) {
+        if (length == 0) return true;
+        Map.Entry<Long, Long> first = ranges.firstEntry();
+        return first != null && first.getKey() == 0 && first.getValue() >= length;
+    }
+
+    public synchronized void clear() {
+        ranges.clear();
+        covered = 0;
+    }
+
+    public synchronized long coveredBytes() {
+        return covered;
+    }
+
+    public synchronized List<long[]> toList() {
+        List<long[]> list = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> entry : ranges.entrySet()) {
+            list.add(new long[] {entry.getKey(), entry.getValue()});
+        }
+        return list;
+    }
+}
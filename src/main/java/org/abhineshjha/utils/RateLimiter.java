@@ -0,0 +1,93 @@
+package org.abhineshjha.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// One token bucket per key (client IP, share id). The hot path is a map get
+// and a CAS. Buckets that have refilled and that no stream holds are evicted
+// by the timer wheel, so the map only holds recently active keys. A rate of
+// 0 disables the limit.
+public class RateLimiter {
+    private static final long MIN_IDLE_CHECK_MS = 60_000;
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private final TimerWheel timerWheel;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(double permitsPerSecond, double burst, TimerWheel timerWheel) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.timerWheel = timerWheel;
+    }
+
+    public boolean isEnabled() {
+        return permitsPerSecond > 0;
+    }
+
+    // Bucket for the key, created on first use. Null when the limit is disabled.
+    public TokenBucket bucket(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        TokenBucket bucket = buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        TokenBucket created = new TokenBucket(permitsPerSecond, burst);
+        bucket = buckets.putIfAbsent(key, created);
+        if (bucket != null) {
+            return bucket;
+        }
+        scheduleIdleCheck(key, created);
+        return created;
+    }
+
+    // As bucket, for a stream that paces itself by it: the bucket stays in
+    // the map, however long it sits full, until the stream releases it.
+    // Taking the hold inside the map's compute keeps eviction from slipping
+    // in between, which would leave two streams of one key on two buckets.
+    public TokenBucket hold(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        boolean[] created = new boolean[1];
+        TokenBucket bucket = buckets.compute(key, (k, current) -> {
+            if (current == null) {
+                current = new TokenBucket(permitsPerSecond, burst);
+                created[0] = true;
+            }
+            current.hold();
+            return current;
+        });
+        if (created[0]) {
+            scheduleIdleCheck(key, bucket);
+        }
+        return bucket;
+    }
+
+    // Returns 0 if the permits were taken, else nanoseconds until they would be
+    public long tryAcquire(String key, long permits) {
+        TokenBucket bucket = bucket(key);
+        return bucket == null ? 0 : bucket.tryAcquire(permits);
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private void scheduleIdleCheck(String key, TokenBucket bucket) {
+        long delay = Math.max(MIN_IDLE_CHECK_MS, TimeUnit.NANOSECONDS.toMillis(bucket.refillNanos()));
+        timerWheel.schedule(() -> evictIfIdle(key, bucket), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the timer wheel. An idle bucket behaves exactly like a new one,
+    // so dropping it loses nothing.
+    private void evictIfIdle(String key, TokenBucket bucket) {
+        TokenBucket kept = buckets.computeIfPresent(key,
+                (k, current) -> current == bucket && current.isIdle() ? null : current);
+        if (kept == bucket) {
+            scheduleIdleCheck(key, bucket);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.abhineshjha.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A bounded ring of bytes between one writer and one reader thread. The
+// writer blocks while the ring is full and the reader while it is empty, so
+// each side runs at the pace of the other, down to their TCP windows. A
+// side that waits longer than idleTimeoutMillis without the other moving
+// gives up, and either side can fail the relay, which wakes the other with
+// an IOException. The ring is allocated on the first write.
+public class RelayBuffer {
+    private final int capacity;
+    private final long idleTimeoutNanos;
+    public final long size; // Bytes the writer announced, -1 if unknown
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+    // Guarded by lock
+    private byte[] ring;
+    private int head;         // Next byte to read
+    private int count;        // Bytes in the ring
+    private long written;     // Bytes written in total
+    private boolean closed;   // The writer is done
+    private boolean drained;  // The reader saw the end
+    private String failure;   // Why the relay was abandoned
+    private boolean hasWriter;
+    private boolean hasReader;
+
+    public RelayBuffer(int capacity, long size, long idleTimeoutMillis) {
+        this.capacity = capacity;
+        this.size = size;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    // Each side may attach once; false if it already has
+    public boolean attachWriter() {
+        lock.lock();
+        try {
+            if (hasWriter || failure != null) return false;
+            hasWriter = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean attachReader() {
+        lock.lock();
+        try {
+            if (hasReader || failure != null) return false;
+            hasReader = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void write(byte[] buffer, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            checkFailure();
+            if (ring == null) {
+                ring = new byte[capacity];
+            }
+            while (len > 0) {
+                while (count == capacity) {
+                    await(writable, "Receiver stalled");
+                }
+                checkFailure();
+                // Up to the free space, in at most two pieces around the end
+                int tail = (head + count) % capacity;
+                int n = Math.min(len, Math.min(capacity - count, capacity - tail));
+                System.arraycopy(buffer, off, ring, tail, n);
+                count += n;
+                written += n;
+                off += n;
+                len -= n;
+                readable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the number of bytes read, or -1 once the writer closed and
+    // everything it wrote was read
+    public int read(byte[] buffer, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            while (count == 0) {
+                checkFailure();
+                if (closed) {
+                    drained = true;
+                    writable.signal();
+                    return -1;
+                }
+                await(readable, ring == null ? "No upload arrived" : "Uploader stalled");
+            }
+            int n = Math.min(len, Math.min(count, capacity - head));
+            System.arraycopy(ring, head, buffer, off, n);
+            head = (head + n) % capacity;
+            count -= n;
+            writable.signal();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The writer has nothing more to send
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            readable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait until the reader has taken everything up to the close. Returns
+    // false if the relay failed or timed out meanwhile.
+    public boolean awaitDrained() {
+        lock.lock();
+        try {
+            while (!drained) {
+                await(writable, "Receiver stalled");
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Abandon the relay, unless it completed already. The first reason sticks.
+    public void fail(String reason) {
+        lock.lock();
+        try {
+            if (drained || failure != null) return;
+            failure = reason;
+            ring = null;
+            count = 0;
+            readable.signal();
+            writable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long written() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait for the other side; a wait that times out fails the relay
+    private void await(Condition condition, String timeoutReason) throws IOException {
+        checkFailure();
+        try {
+            if (condition.awaitNanos(idleTimeoutNanos) <= 0) {
+                fail(timeoutReason);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted");
+            throw new InterruptedIOException("Interrupted waiting on relay");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.abhineshjha.utils;
+
+// Server settings, read from environment variables with local defaults
+public class ServerConfig {
+    public enum ExecutionMode { FIXED, VIRTUAL }
+    // When uploaded blobs are forced to disk: never (left to the OS), once
+    // before a blob is committed, or also every second while it is written
+    public enum FsyncPolicy { NONE, ON_FINALIZE, PERIODIC }
+
+    public final int port;
+    public final int transferPort;
+    public final ExecutionMode executionMode;
+    public final int executorThreads;          // Pool size in FIXED mode
+    public final long pinnedThresholdMs;        // Report virtual threads pinned longer than this
+    public final long shareTtlSeconds;          // Undownloaded shares expire after this, 0 = never
+    public final long uploadIdleSeconds;        // Chunked upload sessions idle this long are aborted
+    public final FsyncPolicy fsyncPolicy;
+    public final long hotCacheBytes;            // Off-heap cache for small blobs, 0 = off
+    public final long hotCacheMaxFileBytes;     // Largest blob the cache takes
+    public final long diskQuotaBytes;           // Bounds stored bytes plus those of uploads in progress; 0 = no quota
+    public final String clusterPeers;           // Comma-separated base URLs of all nodes, empty = single node
+    public final String clusterSelf;            // This node's entry in clusterPeers
+    public final String clusterSecret;          // Shared by all nodes, proves a request was relayed by one
+    // Rate limits; 0 disables a limit
+    public final double ipRequestsPerSecond;
+    public final double uploadsPerMinute;       // New uploads per client IP
+    public final double ipBytesPerSecond;       // Upload and download bandwidth per client IP
+    public final double shareRequestsPerSecond; // Download requests per share, across clients
+    public final double shareBytesPerSecond;
+
+    private ServerConfig(Builder builder) {
+        this.port = builder.port;
+        this.transferPort = builder.transferPort;
+        this.executionMode = builder.executionMode;
+        this.executorThreads = builder.executorThreads;
+        this.pinnedThresholdMs = builder.pinnedThresholdMs;
+        this.shareTtlSeconds = builder.shareTtlSeconds;
+        this.uploadIdleSeconds = builder.uploadIdleSeconds;
+        this.fsyncPolicy = builder.fsyncPolicy;
+        this.hotCacheBytes = builder.hotCacheBytes;
+        this.hotCacheMaxFileBytes = builder.hotCacheMaxFileBytes;
+        this.diskQuotaBytes = builder.diskQuotaBytes;
+        this.clusterPeers = builder.clusterPeers;
+        this.clusterSelf = builder.clusterSelf != null ? builder.clusterSelf : "http://localhost:" + builder.port;
+        this.clusterSecret = builder.clusterSecret;
+        this.ipRequestsPerSecond = builder.ipRequestsPerSecond;
+        this.uploadsPerMinute = builder.uploadsPerMinute;
+        this.ipBytesPerSecond = builder.ipBytesPerSecond;
+        this.shareRequestsPerSecond = builder.shareRequestsPerSecond;
+        this.shareBytesPerSecond = builder.shareBytesPerSecond;
+    }
+
+    // Starts from the local defaults; set only what differs
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static ServerConfig fromEnv() {
+        return builderFromEnv().build();
+    }
+
+    // The environment's settings, for callers that override a few of them
+    public static Builder builderFromEnv() {
+        Builder defaults = new Builder();
+        return new Builder()
+                .port(intEnv("PORT", defaults.port))
+                .transferPort(intEnv("TRANSFER_PORT", defaults.transferPort))
+                .executionMode(ExecutionMode.valueOf(env("EXECUTION_MODE", defaults.executionMode.name()).toUpperCase()))
+                .executorThreads(intEnv("EXECUTOR_THREADS", defaults.executorThreads))
+                .pinnedThresholdMs(longEnv("PINNED_THRESHOLD_MS", defaults.pinnedThresholdMs))
+                .shareTtlSeconds(longEnv("SHARE_TTL_SECONDS", defaults.shareTtlSeconds))
+                .uploadIdleSeconds(longEnv("UPLOAD_IDLE_SECONDS", defaults.uploadIdleSeconds))
+                .fsyncPolicy(FsyncPolicy.valueOf(env("FSYNC_POLICY", defaults.fsyncPolicy.name()).toUpperCase()))
+                .hotCacheBytes(longEnv("HOT_CACHE_BYTES", defaults.hotCacheBytes))
+                .hotCacheMaxFileBytes(longEnv("HOT_CACHE_MAX_FILE_BYTES", defaults.hotCacheMaxFileBytes))
+                .diskQuotaBytes(longEnv("DISK_QUOTA_MB", defaults.diskQuotaBytes / (1024 * 1024)) * 1024 * 1024)
+                .clusterPeers(env("CLUSTER_PEERS", defaults.clusterPeers))
+                .clusterSelf(System.getenv("CLUSTER_SELF")) // Unset, it follows the port
+                .clusterSecret(env("CLUSTER_SECRET", defaults.clusterSecret))
+                .ipRequestsPerSecond(doubleEnv("IP_REQUESTS_PER_SECOND", defaults.ipRequestsPerSecond))
+                .uploadsPerMinute(doubleEnv("UPLOADS_PER_MINUTE", defaults.uploadsPerMinute))
+                .ipBytesPerSecond(doubleEnv("IP_BYTES_PER_SECOND", defaults.ipBytesPerSecond))
+                .shareRequestsPerSecond(doubleEnv("SHARE_REQUESTS_PER_SECOND", defaults.shareRequestsPerSecond))
+                .shareBytesPerSecond(doubleEnv("SHARE_BYTES_PER_SECOND", defaults.shareBytesPerSecond));
+    }
+
+    // Named settings over the defaults, so call sites cannot mix up the order
+    public static class Builder {
+        private int port = 8080;
+        private int transferPort = 9090;
+        private ExecutionMode executionMode = ExecutionMode.VIRTUAL;
+        private int executorThreads = 10;
+        private long pinnedThresholdMs = 20;
+        private long shareTtlSeconds = 24 * 60 * 60;
+        private long uploadIdleSeconds = 60 * 60;
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE;
+        private long hotCacheBytes = 64 * 1024 * 1024;
+        private long hotCacheMaxFileBytes = 256 * 1024;
+        private long diskQuotaBytes = 0;
+        private String clusterPeers = "";
+        private String clusterSelf; // null: http://localhost:<port>
+        private String clusterSecret = "";
+        private double ipRequestsPerSecond = 50;
+        private double uploadsPerMinute = 10;
+        private double ipBytesPerSecond = 25 * 1024 * 1024;
+        private double shareRequestsPerSecond = 20;
+        private double shareBytesPerSecond = 0;
+
+        private Builder() {
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder transferPort(int transferPort) {
+            this.transferPort = transferPort;
+            return this;
+        }
+
+        public Builder executionMode(ExecutionMode executionMode) {
+            this.executionMode = executionMode;
+            return this;
+        }
+
+        public Builder executorThreads(int executorThreads) {
+            this.executorThreads = executorThreads;
+            return this;
+        }
+
+        public Builder pinnedThresholdMs(long pinnedThresholdMs) {
+            this.pinnedThresholdMs = pinnedThresholdMs;
+            return this;
+        }
+
+        public Builder shareTtlSeconds(long shareTtlSeconds) {
+            this.shareTtlSeconds = shareTtlSeconds;
+            return this;
+        }
+
+        public Builder uploadIdleSeconds(long uploadIdleSeconds) {
+            this.uploadIdleSeconds = uploadIdleSeconds;
+            return this;
+        }
+
+        public Builder fsyncPolicy(FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        public Builder hotCacheBytes(long hotCacheBytes) {
+            this.hotCacheBytes = hotCacheBytes;
+            return this;
+        }
+
+        public Builder hotCacheMaxFileBytes(long hotCacheMaxFileBytes) {
+            this.hotCacheMaxFileBytes = hotCacheMaxFileBytes;
+            return this;
+        }
+
+        public Builder diskQuotaBytes(long diskQuotaBytes) {
+            this.diskQuotaBytes = diskQuotaBytes;
+            return this;
+        }
+
+        public Builder clusterPeers(String clusterPeers) {
+            this.clusterPeers = clusterPeers;
+            return this;
+        }
+
+        public Builder clusterSelf(String clusterSelf) {
+            this.clusterSelf = clusterSelf;
+            return this;
+        }
+
+        public Builder clusterSecret(String clusterSecret) {
+            this.clusterSecret = clusterSecret;
+            return this;
+        }
+
+        public Builder ipRequestsPerSecond(double ipRequestsPerSecond) {
+            this.ipRequestsPerSecond = ipRequestsPerSecond;
+            return this;
+        }
+
+        public Builder uploadsPerMinute(double uploadsPerMinute) {
+            this.uploadsPerMinute = uploadsPerMinute;
+            return this;
+        }
+
+        public Builder ipBytesPerSecond(double ipBytesPerSecond) {
+            this.ipBytesPerSecond = ipBytesPerSecond;
+            return this;
+        }
+
+        public Builder shareRequestsPerSecond(double shareRequestsPerSecond) {
+            this.shareRequestsPerSecond = shareRequestsPerSecond;
+            return this;
+        }
+
+        public Builder shareBytesPerSecond(double shareBytesPerSecond) {
+            this.shareBytesPerSecond = shareBytesPerSecond;
+            return this;
+        }
+
+        // Every rate limit off
+        public Builder noRateLimits() {
+            return ipRequestsPerSecond(0).uploadsPerMinute(0).ipBytesPerSecond(0)
+                    .shareRequestsPerSecond(0).shareBytesPerSecond(0);
+        }
+
+        public ServerConfig build() {
+            return new ServerConfig(this);
+        }
+    }
+
+    private static String env(String name, String defaultValue) {
+        return System.getenv().getOrDefault(name, defaultValue);
+    }
+
+    private static int intEnv(String name, int defaultValue) {
+        return Integer.parseInt(env(name, String.valueOf(defaultValue)));
+    }
+
+    // For byte counts that may pass 2GB
+    private static long longEnv(String name, long defaultValue) {
+        return Long.parseLong(env(name, String.valueOf(defaultValue)));
+    }
+
+    private static double doubleEnv(String name, double defaultValue) {
+        return Double.parseDouble(env(name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,59 @@
+package org.abhineshjha.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Paces reads to the byte rate of one or more token buckets. Reading slower
+// lets TCP flow control push back on the sender, so an upload from a single
+// client cannot take all of our bandwidth.
+public class ThrottledInputStream extends FilterInputStream {
+    private final TokenBucket[] buckets;
+    private boolean released;
+
+    // Null buckets are skipped, so disabled limits can be passed straight in.
+    // The stream takes over one hold on each bucket and releases it on close.
+    public ThrottledInputStream(InputStream in, TokenBucket... buckets) {
+        super(in);
+        this.buckets = buckets;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            ThrottledOutputStream.pace(buckets, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, Math.min(len, ThrottledOutputStream.CHUNK_SIZE));
+        if (read > 0) {
+            ThrottledOutputStream.pace(buckets, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, ThrottledOutputStream.CHUNK_SIZE));
+        if (skipped > 0) {
+            ThrottledOutputStream.pace(buckets, skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!released) {
+                released = true;
+                ThrottledOutputStream.release(buckets);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.abhineshjha.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// Paces writes to the byte rate of one or more token buckets (e.g. the
+// client's IP and the share). Large writes are split so the pace stays
+// smooth; the writing thread sleeps, which is cheap on a virtual thread.
+public class ThrottledOutputStream extends FilterOutputStream {
+    static final int CHUNK_SIZE = 16 * 1024;
+
+    private final TokenBucket[] buckets;
+    private boolean released;
+
+    // Null buckets are skipped, so disabled limits can be passed straight in.
+    // The stream takes over one hold on each bucket and releases it on close.
+    public ThrottledOutputStream(OutputStream out, TokenBucket... buckets) {
+        super(out);
+        this.buckets = buckets;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        pace(buckets, 1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk = Math.min(len, CHUNK_SIZE);
+            pace(buckets, chunk);
+            out.write(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!released) {
+                released = true;
+                release(buckets);
+            }
+        }
+    }
+
+    static void release(TokenBucket[] buckets) {
+        for (TokenBucket bucket : buckets) {
+            if (bucket != null) {
+                bucket.release();
+            }
+        }
+    }
+
+    // Take bytes from every bucket and wait for the slowest
+    static void pace(TokenBucket[] buckets, long bytes) throws IOException {
+        long wait = 0;
+        for (TokenBucket bucket : buckets) {
+            if (bucket != null) {
+                wait = Math.max(wait, bucket.reserve(bytes));
+            }
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
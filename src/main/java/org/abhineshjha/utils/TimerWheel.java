@@ -0,0 +1,218 @@
+package org.abhineshjha.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashed timing wheel for large numbers of coarse timeouts (share TTLs, idle
+// sessions, rate limiter entries). Scheduling and cancelling are O(1) and
+// lock-free for the caller: both just enqueue, and the single worker thread
+// moves timeouts into their bucket once per tick. Each tick the worker
+// collects every timeout due in the current bucket and runs them as one
+// batch, so file deletes and map removals happen off the request threads.
+public class TimerWheel {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running;
+    private long tick; // Worker thread only
+
+    public static class Timeout {
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadline; // Nanos since the wheel started
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // Bucket list links and remaining laps, worker thread only
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(TimerWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Returns false if the task already ran or was cancelled before
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.pending.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    // Doubly linked list of the timeouts hashed to one slot
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            if (timeout == head) head = timeout.next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        // Unlink the timeouts due in this lap and add them to the batch
+        void expire(List<Timeout> batch) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                        timeout.timer.pending.decrementAndGet();
+                        batch.add(timeout);
+                    }
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    // tick is the resolution; a timeout fires up to one tick late. The wheel
+    // size (rounded up to a power of two) sets how many ticks one lap covers;
+    // longer delays just stay in their bucket for several laps.
+    public TimerWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) * 2 - 1);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+    }
+
+    public void start() {
+        if (!running) {
+            running = true;
+            worker.start();
+        }
+    }
+
+    // Stop the worker after it has run what is already due, so work handed
+    // over with a zero delay (e.g. deletes after a download) is not lost
+    public void stop() {
+        if (!running) return;
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Run task once after the delay, on the wheel thread. A delay of zero
+    // runs it with the next tick's batch.
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    // Timeouts that have neither fired nor been cancelled
+    public int pendingTimeouts() {
+        return pending.get();
+    }
+
+    private void run() {
+        List<Timeout> batch = new ArrayList<>();
+        while (running) {
+            long tickDeadline = tickNanos * (tick + 1);
+            long sleepNanos = tickDeadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) break;
+                    continue;
+                }
+            }
+
+            runTick(batch);
+        }
+        // Final pass on shutdown for whatever is overdue
+        runTick(batch);
+    }
+
+    private void runTick(List<Timeout> batch) {
+        removeCancelled();
+        transferScheduled();
+        wheel[(int) (tick & mask)].expire(batch);
+        tick++;
+
+        for (Timeout timeout : batch) {
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                System.err.println("Timer task failed: " + t);
+            }
+        }
+        batch.clear();
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != PENDING) {
+                continue;
+            }
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.rounds = (dueTick - tick) / wheel.length;
+            // Anything already overdue goes into the bucket expiring now
+            wheel[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+}
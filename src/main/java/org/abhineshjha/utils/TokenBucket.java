@@ -0,0 +1,84 @@
+package org.abhineshjha.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket in GCRA form: the whole state is one "theoretical arrival
+// time" (TAT), the instant at which the bucket would be full again. Taking
+// permits pushes the TAT forward with a CAS, so concurrent callers never
+// lock and never lose an update. The bucket refills at permitsPerSecond
+// and holds at most burst permits.
+public class TokenBucket {
+    private final double nanosPerPermit;
+    private final long burstNanos; // How far the TAT may run ahead of now
+    private final AtomicLong tat;
+    private final AtomicInteger holders = new AtomicInteger(); // Streams pacing themselves by this bucket
+
+    public TokenBucket(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate must be positive and burst at least 1");
+        }
+        this.nanosPerPermit = 1_000_000_000d / permitsPerSecond;
+        this.burstNanos = (long) (burst * nanosPerPermit);
+        this.tat = new AtomicLong(System.nanoTime()); // Starts full
+    }
+
+    // Take the permits if the bucket holds them. Returns 0 on success,
+    // otherwise the nanoseconds until they would be available.
+    public long tryAcquire(long permits) {
+        long cost = (long) (permits * nanosPerPermit);
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long next = Math.max(current, now) + cost;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    // Take the permits unconditionally, going into debt if needed, and return
+    // how many nanoseconds the caller should wait before using them. For byte
+    // streams, where the data has to move either way and only its pace matters.
+    public long reserve(long permits) {
+        long cost = (long) (permits * nanosPerPermit);
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long next = Math.max(current, now) + cost;
+            if (tat.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    // True when the bucket has refilled completely, i.e. it holds no state
+    // worth keeping
+    public boolean isFull() {
+        return tat.get() - System.nanoTime() <= 0;
+    }
+
+    // A stream paces itself by the bucket until it calls release
+    public void hold() {
+        holders.incrementAndGet();
+    }
+
+    public void release() {
+        holders.decrementAndGet();
+    }
+
+    // True when nobody holds the bucket and it is full, so a new bucket in
+    // its place would behave exactly the same
+    public boolean isIdle() {
+        return holders.get() == 0 && isFull();
+    }
+
+    // Time for an empty bucket to refill, in nanoseconds
+    public long refillNanos() {
+        return burstNanos;
+    }
+}
@@ -0,0 +1,88 @@
+package org.abhineshjha.handler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.abhineshjha.service.Share;
+
+import junit.framework.TestCase;
+
+public class DownloadHandlerTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("download-test", ".bin");
+        byte[] content = new byte[1000];
+        Arrays.fill(content, (byte) 'x');
+        Files.write(file.toPath(), content);
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testCopyRangeFailsWhenTheFileIsShorterThanPromised() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DownloadHandler.copyRange(channel, 200, 300, Channels.newChannel(out));
+            assertEquals(300, out.size());
+
+            // As if the file had been truncated after its size was sent
+            DownloadHandler.copyRange(channel, 900, 500, Channels.newChannel(out));
+            fail("copied past the end of the file");
+        } catch (IOException expected) {
+            assertEquals(400, out.size());
+        }
+    }
+
+    public void testContentDispositionCannotBreakOutOfTheHeader() {
+        assertEquals("attachment; filename=\"report.pdf\"; filename*=UTF-8''report.pdf",
+                DownloadHandler.contentDisposition("report.pdf"));
+        assertEquals("attachment; filename=\"a_ b_.txt__X-Evil: 1\"; filename*=UTF-8''a%22%20b%5C.txt%0D%0AX-Evil%3A%201",
+                DownloadHandler.contentDisposition("a\" b\\.txt\r\nX-Evil: 1"));
+        assertEquals("attachment; filename=\"r_sum_.txt\"; filename*=UTF-8''r%C3%A9sum%C3%A9.txt",
+                DownloadHandler.contentDisposition("r\u00e9sum\u00e9.txt"));
+    }
+
+    public void testBundleZipHoldsEveryEntry() throws IOException {
+        File other = File.createTempFile("download-test", ".bin");
+        try {
+            Files.write(other.toPath(), "hello".getBytes());
+            CRC32 crc = new CRC32();
+            crc.update(Files.readAllBytes(file.toPath()));
+            List<Share.Entry> entries = List.of(
+                    new Share.Entry("docs/a.txt", other.getPath(), "aa", 5, 0),
+                    // Already compressed: STORED with the size and CRC from the upload
+                    new Share.Entry("docs/a.zip", file.getPath(), "bb", 1000, crc.getValue()));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DownloadHandler.writeBundle(entries, out);
+
+            try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+                ZipEntry entry = zip.getNextEntry();
+                assertEquals("docs/a.txt", entry.getName());
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                assertEquals("hello", new String(zip.readAllBytes()));
+                entry = zip.getNextEntry();
+                assertEquals("docs/a.zip", entry.getName());
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()), zip.readAllBytes()));
+                assertNull(zip.getNextEntry());
+            }
+        } finally {
+            other.delete();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.abhineshjha.handler;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.abhineshjha.service.Share;
+
+import junit.framework.TestCase;
+
+public class UploadHandlerTest extends TestCase {
+
+    private static Share.Entry entry(String name) {
+        return new Share.Entry(name, "/tmp/blobs/" + name, "digest", 1, 0);
+    }
+
+    public void testEntryNamesStayInsideTheArchive() {
+        assertEquals("docs/a.txt", UploadHandler.entryName("docs/a.txt"));
+        assertEquals("docs/a.txt", UploadHandler.entryName("docs\\a.txt"));
+        assertEquals("etc/passwd.txt", UploadHandler.entryName("/../../etc/passwd.txt"));
+        assertEquals("Users/a.txt", UploadHandler.entryName("C:\\Users\\.\\a.txt"));
+        assertEquals("unnamed-file.txt", UploadHandler.entryName("../.."));
+    }
+
+    public void testDuplicateNamesGetNumbered() {
+        Set<String> taken = new HashSet<>();
+        assertEquals("a.txt", UploadHandler.uniqueName("a.txt", taken));
+        assertEquals("a (2).txt", UploadHandler.uniqueName("a.txt", taken));
+        assertEquals("a (3).txt", UploadHandler.uniqueName("a.txt", taken));
+        assertEquals("docs/a.txt", UploadHandler.uniqueName("docs/a.txt", taken));
+        // The number goes before the extension, never into a folder name
+        assertEquals("v1.2/notes", UploadHandler.uniqueName("v1.2/notes", taken));
+        assertEquals("v1.2/notes (2)", UploadHandler.uniqueName("v1.2/notes", taken));
+    }
+
+    public void testBundleIsNamedAfterACommonFolder() {
+        assertEquals("docs.zip", UploadHandler.bundleName(List.of(entry("docs/a.txt"), entry("docs/sub/b.txt"))));
+        assertEquals("files.zip", UploadHandler.bundleName(List.of(entry("docs/a.txt"), entry("other/b.txt"))));
+        assertEquals("files.zip", UploadHandler.bundleName(List.of(entry("a.txt"), entry("b.txt"))));
+    }
+}
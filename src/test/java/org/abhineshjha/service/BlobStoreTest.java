@@ -0,0 +1,88 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.abhineshjha.utils.ServerConfig;
+
+import junit.framework.TestCase;
+
+public class BlobStoreTest extends TestCase {
+    private File dir;
+    private BlobStore blobStore;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("blob-test").toFile();
+        blobStore = new BlobStore(dir.getPath(), ServerConfig.FsyncPolicy.ON_FINALIZE);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    public void testPipelinedWriteMatchesContent() throws IOException, NoSuchAlgorithmException {
+        // Several buffers' worth, written in odd sizes that straddle buffer borders
+        byte[] content = new byte[3 * 1024 * 1024 + 12345];
+        new Random(7).nextBytes(content);
+        BlobStore.BlobWriter writer = blobStore.newWriter();
+        int off = 0;
+        Random sizes = new Random(3);
+        while (off < content.length) {
+            int len = Math.min(content.length - off, 1 + sizes.nextInt(100_000));
+            writer.write(content, off, len);
+            off += len;
+        }
+        String digest = blobStore.commit(writer);
+
+        String expected = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        assertEquals(expected, digest);
+        assertEquals(content.length, writer.size());
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        assertEquals(crc.getValue(), writer.crc32());
+        assertTrue(Arrays.equals(content, Files.readAllBytes(blobStore.blobFile(digest).toPath())));
+    }
+
+    public void testSmallWriteAndDiscard() throws IOException {
+        BlobStore.BlobWriter small = blobStore.newWriter();
+        small.write("hello".getBytes());
+        String digest = blobStore.commit(small);
+        assertEquals("hello", new String(Files.readAllBytes(blobStore.blobFile(digest).toPath())));
+
+        BlobStore.BlobWriter large = blobStore.newWriter();
+        large.write(new byte[1024 * 1024]);
+        large.discard();
+        assertEquals(0, blobStore.incomingBytes());
+        assertEquals(1, blobStore.blobCount());
+    }
+
+    public void testSingleByteWritesAndAbortReturnBuffers() throws IOException {
+        int available = blobStore.availableBuffers();
+        byte[] content = new byte[200_000]; // Spans several buffers
+        new Random(5).nextBytes(content);
+        BlobStore.BlobWriter writer = blobStore.newWriter();
+        for (byte b : content) {
+            writer.write(b);
+        }
+        String digest = blobStore.commit(writer);
+        assertTrue(Arrays.equals(content, Files.readAllBytes(blobStore.blobFile(digest).toPath())));
+        assertEquals(available, blobStore.availableBuffers());
+
+        // Aborted with a partly filled buffer in hand
+        BlobStore.BlobWriter aborted = blobStore.newWriter();
+        aborted.write(content, 0, 100_000);
+        aborted.discard();
+        assertEquals(available, blobStore.availableBuffers());
+    }
+}
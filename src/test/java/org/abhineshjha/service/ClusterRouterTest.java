@@ -0,0 +1,72 @@
+package org.abhineshjha.service;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ClusterRouterTest extends TestCase {
+    private static final String THREE = "http://localhost:8080,http://localhost:8081,http://localhost:8082";
+    private static final String TWO = "http://localhost:8080,http://localhost:8082";
+
+    public void testEveryNodeAgreesOnTheOwner() {
+        ClusterRouter[] nodes = {
+            new ClusterRouter(THREE, "http://localhost:8080"),
+            new ClusterRouter(THREE, "http://localhost:8081/"),
+            new ClusterRouter(THREE, "http://localhost:8082")
+        };
+        ShareRegistry registry = new ShareRegistry();
+        for (int i = 0; i < 1000; i++) {
+            String token = registry.allocate(i);
+            int owner = nodes[0].ownerOf(token);
+            int owning = 0;
+            for (int node = 0; node < nodes.length; node++) {
+                assertEquals(owner, nodes[node].ownerOf(token));
+                if (nodes[node].remoteOwner(token) == null) {
+                    owning++;
+                }
+            }
+            assertEquals(1, owning);
+        }
+    }
+
+    public void testTokensSpreadEvenlyAndFewMoveWhenANodeLeaves() {
+        ClusterRouter three = new ClusterRouter(THREE, "http://localhost:8080");
+        ClusterRouter two = new ClusterRouter(TWO, "http://localhost:8080");
+        int[] counts = new int[3];
+        int moved = 0;
+        Random random = new Random(5);
+        int samples = 30_000;
+        for (int i = 0; i < samples; i++) {
+            long key = random.nextLong() >>> 4;
+            int before = three.ownerOf(key);
+            counts[before]++;
+            // 8081 drops out: only its tokens go elsewhere
+            String ownerBefore = THREE.split(",")[before];
+            String ownerAfter = TWO.split(",")[two.ownerOf(key)];
+            if (!ownerBefore.equals(ownerAfter)) {
+                moved++;
+                assertEquals("http://localhost:8081", ownerBefore);
+            }
+        }
+        for (int count : counts) {
+            assertTrue("uneven share " + count, Math.abs(count - samples / 3) < samples / 10);
+        }
+        assertEquals(counts[1], moved);
+    }
+
+    public void testAllocationKeepsToTheNodesOwnTokens() {
+        ClusterRouter router = new ClusterRouter(THREE, "http://localhost:8081");
+        ShareRegistry registry = new ShareRegistry();
+        for (int i = 0; i < 200; i++) {
+            String token = registry.allocate(i, router::owns);
+            assertNull(router.remoteOwner(token));
+            assertEquals(i, registry.lookup(token));
+        }
+        assertNull(new ClusterRouter().remoteOwner(registry.allocate(500)));
+        try {
+            new ClusterRouter(TWO, "http://localhost:8081");
+            fail("node missing from its own peer list");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.utils.TimerWheel;
+
+import junit.framework.TestCase;
+
+public class FileSharerTest extends TestCase {
+    private File dir;
+    private TimerWheel timerWheel;
+    private BlobStore blobStore;
+    private FileSharer fileSharer;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("sharer-test").toFile();
+        timerWheel = new TimerWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 64);
+        timerWheel.start();
+        blobStore = new BlobStore(dir.getPath());
+        fileSharer = new FileSharer(blobStore, new ShareJournal(dir.getPath()), timerWheel, 0);
+        fileSharer.restore(dir.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        timerWheel.stop();
+        fileSharer.close();
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private String store(String content) throws IOException {
+        BlobStore.BlobWriter writer = blobStore.newWriter();
+        writer.write(content.getBytes());
+        return blobStore.commit(writer);
+    }
+
+    private static void awaitDeleted(File file) throws InterruptedException {
+        for (int i = 0; i < 200 && file.exists(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void testShareEndsAfterMaxDownloads() throws IOException, InterruptedException {
+        String digest = store("team notes");
+        int port = fileSharer.offerBlob(digest, "notes.txt", 3, 0);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(fileSharer.recordDelivered(port, "10.0.0.1", 0, 10, 10));
+            fileSharer.recordDownload(port);
+            assertNotNull(fileSharer.getPortByToken(fileSharer.getToken(port)));
+        }
+        // Ranges start over for every download, and are kept per recipient
+        assertFalse(fileSharer.recordDelivered(port, "10.0.0.1", 0, 5, 10));
+        assertFalse(fileSharer.recordDelivered(port, "10.0.0.2", 5, 10, 10));
+        assertTrue(fileSharer.recordDelivered(port, "10.0.0.1", 5, 10, 10));
+        fileSharer.recordDownload(port);
+
+        assertNull(fileSharer.getShare(port));
+        awaitDeleted(blobStore.blobFile(digest));
+        assertFalse(blobStore.blobFile(digest).exists());
+    }
+
+    public void testReadersOwnTheirChannelsAndDelayCleanup() throws IOException, InterruptedException {
+        String digest = store("shared content");
+        int port = fileSharer.offerBlob(digest, "shared.txt", 2, 0);
+        Share first = fileSharer.acquireReader(port);
+        Share second = fileSharer.acquireReader(port);
+        FileChannel channel = second.openChannel();
+        // A reader that is interrupted closes only its own channel
+        first.openChannel().close();
+
+        // Both downloads are claimed, and the first completes
+        assertNull(fileSharer.acquireReader(port));
+        fileSharer.releaseReader(first, true);
+        assertNull(fileSharer.acquireReader(port));
+        assertNotNull(fileSharer.getShare(port));
+        fileSharer.recordDownload(port);
+        assertNull(fileSharer.getShare(port));
+        // The remaining reader can still read the withdrawn share
+        Thread.sleep(50);
+        ByteBuffer buffer = ByteBuffer.allocate(6);
+        channel.read(buffer, 0);
+        assertEquals("shared", new String(buffer.array()));
+
+        channel.close();
+        fileSharer.releaseReader(second, false);
+        awaitDeleted(blobStore.blobFile(digest));
+        assertFalse(blobStore.blobFile(digest).exists());
+    }
+
+    public void testConcurrentReadersClaimTheLastDownloadOnce() throws Exception {
+        String digest = store("only once");
+        int port = fileSharer.offerBlob(digest, "once.txt");
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Share>> readers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                readers.add(pool.submit(() -> {
+                    start.await();
+                    return fileSharer.acquireReader(port);
+                }));
+            }
+            start.countDown();
+            Share winner = null;
+            int acquired = 0;
+            for (Future<Share> reader : readers) {
+                Share share = reader.get();
+                if (share != null) {
+                    winner = share;
+                    acquired++;
+                }
+            }
+            assertEquals(1, acquired);
+
+            // A transfer that breaks off gives its download back
+            fileSharer.releaseReader(winner, false);
+            Share retry = fileSharer.acquireReader(port);
+            assertNotNull(retry);
+            fileSharer.releaseReader(retry, true);
+            assertNull(fileSharer.getShare(port));
+            assertNull(fileSharer.acquireReader(port));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testShareExpiresOnItsOwnDeadline() throws IOException, InterruptedException {
+        String digest = store("short lived");
+        int port = fileSharer.offerBlob(digest, "short.txt", 0, 50);
+        assertTrue(fileSharer.getShare(port).expiresAt > 0);
+        for (int i = 0; i < 200 && fileSharer.getShare(port) != null; i++) {
+            Thread.sleep(10);
+        }
+        assertNull(fileSharer.getShare(port));
+    }
+}
@@ -0,0 +1,75 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class GzipVariantsTest extends TestCase {
+    private File dir;
+    private BlobStore blobStore;
+    private GzipVariants gzipVariants;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("gzip-test").toFile();
+        blobStore = new BlobStore(dir.getPath());
+        gzipVariants = new GzipVariants(blobStore);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        gzipVariants.close();
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private String store(byte[] content) throws IOException {
+        BlobStore.BlobWriter writer = blobStore.newWriter();
+        writer.write(content);
+        return blobStore.commit(writer);
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (gzipVariants.queued() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void testTextGetsVariant() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("row ").append(i).append(", some,csv,columns\n");
+        }
+        String digest = store(text.toString().getBytes(StandardCharsets.US_ASCII));
+        gzipVariants.prepare(digest, "data.csv");
+        awaitIdle();
+
+        File variant = gzipVariants.variant(digest);
+        assertNotNull(variant);
+        assertTrue(variant.length() < blobStore.blobFile(digest).length() / 2);
+
+        // The variant goes with the last reference to the blob
+        blobStore.release(digest);
+        assertFalse(variant.exists());
+    }
+
+    public void testIncompressibleContentIsSkipped() throws Exception {
+        byte[] random = new byte[256 * 1024];
+        new Random(42).nextBytes(random);
+        String digest = store(random);
+        gzipVariants.prepare(digest, "data.txt");
+
+        String image = store("not really a png, but named like one".repeat(100).getBytes(StandardCharsets.US_ASCII));
+        gzipVariants.prepare(image, "photo.PNG");
+        awaitIdle();
+
+        assertNull(gzipVariants.variant(digest));
+        assertNull(gzipVariants.variant(image));
+    }
+}
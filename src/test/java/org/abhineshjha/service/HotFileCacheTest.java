@@ -0,0 +1,105 @@
+package org.abhineshjha.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class HotFileCacheTest extends TestCase {
+    private static final int KB = 1024;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("cache-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private File file(String name, byte[] content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] read(HotFileCache.Entry entry) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entry.transferTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    public void testServesContentAcrossPages() throws IOException {
+        HotFileCache cache = new HotFileCache(1024 * KB, 64 * KB);
+        byte[] content = new byte[10_000]; // Three pages, the last one partly used
+        new Random(1).nextBytes(content);
+        cache.offer("a", file("a", content));
+
+        HotFileCache.Entry entry = cache.acquire("a");
+        assertNotNull(entry);
+        try {
+            assertTrue(Arrays.equals(content, read(entry)));
+        } finally {
+            entry.release();
+        }
+        assertNull(cache.acquire("b"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    public void testRejectsLargeFilesAndStaysBounded() throws IOException {
+        HotFileCache cache = new HotFileCache(256 * KB, 16 * KB);
+        cache.offer("big", file("big", new byte[17 * KB]));
+        assertNull(cache.acquire("big"));
+
+        for (int i = 0; i < 100; i++) {
+            cache.offer("f" + i, file("f" + i, new byte[8 * KB]));
+        }
+        assertTrue(cache.usedBytes() <= 256 * KB);
+        assertTrue(cache.evictions() > 0);
+    }
+
+    public void testFrequentEntrySurvivesScan() throws IOException {
+        HotFileCache cache = new HotFileCache(256 * KB, 16 * KB);
+        byte[] hot = new byte[8 * KB];
+        Arrays.fill(hot, (byte) 7);
+        cache.offer("hot", file("hot", hot));
+        for (int i = 0; i < 10; i++) {
+            cache.acquire("hot").release();
+        }
+        // A burst of one-off blobs, several times the cache size
+        for (int i = 0; i < 200; i++) {
+            cache.offer("once" + i, file("once" + i, new byte[8 * KB]));
+        }
+        HotFileCache.Entry entry = cache.acquire("hot");
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(hot, read(entry)));
+        entry.release();
+    }
+
+    public void testEvictedEntryStaysReadableWhilePinned() throws IOException {
+        HotFileCache cache = new HotFileCache(256 * KB, 16 * KB);
+        byte[] content = new byte[8 * KB];
+        Arrays.fill(content, (byte) 3);
+        cache.offer("pinned", file("pinned", content));
+        HotFileCache.Entry entry = cache.acquire("pinned");
+
+        cache.invalidate("pinned");
+        for (int i = 0; i < 100; i++) {
+            cache.offer("other" + i, file("other" + i, new byte[8 * KB]));
+        }
+        assertNull(cache.acquire("pinned"));
+        assertTrue(Arrays.equals(content, read(entry)));
+        entry.release();
+    }
+}
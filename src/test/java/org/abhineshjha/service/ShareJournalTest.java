@@ -0,0 +1,181 @@
+package org.abhineshjha.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import junit.framework.TestCase;
+
+public class ShareJournalTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal-test").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static Share share(int id) {
+        return new Share(id, "TOKEN" + id, "/tmp/blobs/" + id, "file" + id + ".txt", id % 2 == 0 ? "digest" + id : null, 1000L * id,
+                new ArrayList<>());
+    }
+
+    public void testReplaysAddsMinusRemoves() throws IOException {
+        ShareJournal journal = new ShareJournal(dir.getPath());
+        assertTrue(journal.replay().isEmpty());
+        for (int id = 1; id <= 5; id++) {
+            journal.appendAdd(share(id));
+        }
+        journal.appendRemove(2);
+        journal.appendRemove(4);
+        journal.close();
+
+        List<Share> replayed = new ArrayList<>(new ShareJournal(dir.getPath()).replay());
+        assertEquals(3, replayed.size());
+        assertEquals(1, replayed.get(0).id);
+        assertEquals(3, replayed.get(1).id);
+        assertEquals(5, replayed.get(2).id);
+        assertEquals("TOKEN3", replayed.get(1).token);
+        assertEquals("file3.txt", replayed.get(1).fileName);
+        assertNull(replayed.get(1).digest);
+        assertEquals(3000L, replayed.get(1).createdAt);
+        assertFalse(replayed.get(1).isBundle());
+    }
+
+    public void testBundleEntriesRoundTrip() throws IOException {
+        ShareJournal journal = new ShareJournal(dir.getPath());
+        journal.replay();
+        List<Share.Entry> entries = new ArrayList<>();
+        entries.add(new Share.Entry("docs/a.txt", "/tmp/blobs/aa", "aa", 10, 0xCAFEBABEL));
+        entries.add(new Share.Entry("docs/b.png", "/tmp/blobs/bb", "bb", 20, 7));
+        journal.appendAdd(new Share(1, "TOKEN1", "", "docs.zip", null, 1000L, entries));
+        journal.close();
+
+        Share replayed = new ShareJournal(dir.getPath()).replay().iterator().next();
+        assertTrue(replayed.isBundle());
+        assertEquals(2, replayed.entries.size());
+        assertEquals("docs/a.txt", replayed.entries.get(0).name);
+        assertEquals("aa", replayed.entries.get(0).digest);
+        assertEquals(0xCAFEBABEL, replayed.entries.get(0).crc);
+        assertEquals(20, replayed.entries.get(1).size);
+    }
+
+    public void testLimitsAndDownloadsRoundTrip() throws IOException {
+        ShareJournal journal = new ShareJournal(dir.getPath());
+        journal.replay();
+        journal.appendAdd(new Share(1, "TOKEN1", "/tmp/blobs/1", "team.pdf", "digest1", 1000L, new ArrayList<>(),
+                30, 5000L));
+        journal.appendDownload(1);
+        journal.appendDownload(1);
+        journal.appendAdd(share(2));
+        journal.close();
+
+        List<Share> replayed = new ArrayList<>(new ShareJournal(dir.getPath()).replay());
+        assertEquals(30, replayed.get(0).maxDownloads);
+        assertEquals(5000L, replayed.get(0).expiresAt);
+        assertEquals(2, replayed.get(0).downloads());
+        assertEquals(1, replayed.get(1).maxDownloads);
+        assertEquals(0, replayed.get(1).downloads());
+
+        // Compaction folds the download records into the share
+        journal = new ShareJournal(dir.getPath());
+        journal.compact(journal.replay());
+        journal.close();
+        assertEquals(2, new ShareJournal(dir.getPath()).replay().iterator().next().downloads());
+    }
+
+    public void testTornTailIsDiscarded() throws IOException {
+        ShareJournal journal = new ShareJournal(dir.getPath());
+        journal.replay();
+        journal.appendAdd(share(1));
+        journal.appendAdd(share(2));
+        journal.close();
+
+        // Simulate a crash half way through the last record
+        File file = new File(dir, "shares.journal");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 7);
+        }
+
+        journal = new ShareJournal(dir.getPath());
+        Collection<Share> replayed = journal.replay();
+        assertEquals(1, replayed.size());
+        // Appends after recovery land behind the last good record
+        journal.appendAdd(share(3));
+        journal.close();
+        assertEquals(2, new ShareJournal(dir.getPath()).replay().size());
+    }
+
+    public void testCompactionKeepsOnlyLiveShares() throws IOException {
+        ShareJournal journal = new ShareJournal(dir.getPath());
+        journal.replay();
+        List<Share> live = new ArrayList<>();
+        for (int id = 1; id <= 100; id++) {
+            journal.appendAdd(share(id));
+            if (id % 10 == 0) {
+                live.add(share(id));
+            } else {
+                journal.appendRemove(id);
+            }
+        }
+        long before = new File(dir, "shares.journal").length();
+        journal.compact(live);
+        journal.appendAdd(share(101));
+        journal.close();
+
+        assertTrue(new File(dir, "shares.journal").length() < before);
+        assertEquals(11, new ShareJournal(dir.getPath()).replay().size());
+    }
+
+    public void testRecordsWithoutCreationTimeAgeFromTheJournal() throws IOException {
+        // A record as written before shares had a creation time
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(payload);
+        record.writeInt(1);
+        record.writeUTF("TOKEN1");
+        record.writeUTF("/tmp/blobs/1");
+        record.writeUTF("old.txt");
+        record.writeBoolean(false);
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        File file = new File(dir, "shares.journal");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x504C4A31);
+            out.writeByte(1);
+            out.writeInt(payload.size());
+            out.write(payload.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+        long lastWritten = 1_600_000_000_000L;
+        assertTrue(file.setLastModified(lastWritten));
+
+        ShareJournal journal = new ShareJournal(dir.getPath());
+        Collection<Share> live = journal.replay();
+        assertEquals(lastWritten, live.iterator().next().createdAt);
+        // The time is written down, so later writes to the journal do not move it
+        assertTrue(journal.needsCompaction());
+        journal.compact(live);
+        assertFalse(journal.needsCompaction());
+        journal.close();
+        assertTrue(file.setLastModified(lastWritten + 1000));
+        assertEquals(lastWritten, new ShareJournal(dir.getPath()).replay().iterator().next().createdAt);
+    }
+}
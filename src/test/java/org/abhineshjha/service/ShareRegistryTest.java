@@ -0,0 +1,89 @@
+package org.abhineshjha.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class ShareRegistryTest extends TestCase {
+
+    public void testAllocatedTokensAreUniqueAndResolvable() {
+        ShareRegistry registry = new ShareRegistry();
+        Map<String, Integer> issued = new HashMap<>();
+        for (int id = 0; id < 100_000; id++) {
+            String token = registry.allocate(id);
+            assertNull("duplicate token " + token, issued.put(token, id));
+        }
+        assertEquals(100_000, registry.size());
+        for (Map.Entry<String, Integer> entry : issued.entrySet()) {
+            assertEquals((int) entry.getValue(), registry.lookup(entry.getKey()));
+        }
+    }
+
+    public void testRemoveLeavesOtherTokensReachable() {
+        ShareRegistry registry = new ShareRegistry();
+        String[] tokens = new String[1_000];
+        for (int id = 0; id < tokens.length; id++) {
+            tokens[id] = registry.allocate(id);
+        }
+        for (int id = 0; id < tokens.length; id += 2) {
+            assertTrue(registry.remove(tokens[id]));
+        }
+        for (int id = 0; id < tokens.length; id++) {
+            assertEquals(id % 2 == 0 ? -1 : id, registry.lookup(tokens[id]));
+        }
+        assertFalse(registry.remove(tokens[0]));
+        assertEquals(500, registry.size());
+    }
+
+    public void testTokenDecodingIsLenient() {
+        ShareRegistry registry = new ShareRegistry();
+        String token = registry.allocate(7);
+        assertEquals(12, token.length());
+        assertEquals(7, registry.lookup(token.toLowerCase()));
+        assertEquals(-1, registry.lookup("123456"));
+        assertEquals(-1, registry.lookup("not-a-token!"));
+        assertEquals(-1, registry.lookup(null));
+    }
+
+    public void testRegisterRejectsTakenToken() {
+        ShareRegistry registry = new ShareRegistry();
+        String token = registry.allocate(1);
+        assertFalse(registry.register(token, 2));
+        assertEquals(1, registry.lookup(token));
+    }
+
+    public void testLookupsStayCorrectWhileTheTableGrows() throws Exception {
+        ShareRegistry registry = new ShareRegistry();
+        String[] tokens = new String[200_000];
+        String first = registry.allocate(0);
+        tokens[0] = first;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                try {
+                    // Every rehash happens under these lookups
+                    while (registry.size() < tokens.length) {
+                        assertEquals(0, registry.lookup(first));
+                        assertEquals(-1, registry.lookup("ZZZZZZZZZZZZ"));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            readers[r].start();
+        }
+        for (int id = 1; id < tokens.length; id++) {
+            tokens[id] = registry.allocate(id);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        for (int id = 0; id < tokens.length; id++) {
+            assertEquals(id, registry.lookup(tokens[id]));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.abhineshjha.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.utils.TimerWheel;
+
+import junit.framework.TestCase;
+
+public class StorageManagerTest extends TestCase {
+    private static final int KB = 1024;
+
+    private File dir;
+    private TimerWheel timerWheel;
+    private BlobStore blobStore;
+    private FileSharer fileSharer;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("storage-test").toFile();
+        timerWheel = new TimerWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 64);
+        timerWheel.start();
+        blobStore = new BlobStore(dir.getPath());
+        fileSharer = new FileSharer(blobStore, new ShareJournal(dir.getPath()), timerWheel, 0);
+        fileSharer.restore(dir.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        timerWheel.stop();
+        fileSharer.close();
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private int share(int size, byte fill) throws IOException {
+        BlobStore.BlobWriter writer = blobStore.newWriter();
+        byte[] content = new byte[size];
+        Arrays.fill(content, fill);
+        writer.write(content);
+        return fileSharer.offerBlob(blobStore.commit(writer), "f" + fill + ".txt");
+    }
+
+    public void testReservationsCountAgainstQuota() throws IOException {
+        StorageManager storage = new StorageManager(blobStore, fileSharer, 100 * KB);
+        StorageManager.Reservation first = storage.reserve(60 * KB);
+        try {
+            storage.reserve(60 * KB);
+            fail("Second reservation should not fit");
+        } catch (StorageManager.StorageFullException e) {
+            // Nothing stored to evict: the space is held by the upload in progress
+            assertTrue(e.temporary);
+            assertTrue(e.retryAfterSeconds > 0);
+        }
+        first.close();
+        first.close();
+        assertEquals(0, storage.reservedBytes());
+        storage.reserve(60 * KB).close();
+
+        try {
+            storage.reserve(101 * KB);
+            fail("Larger than the quota");
+        } catch (StorageManager.StorageFullException e) {
+            assertFalse(e.temporary);
+            assertEquals(0, e.retryAfterSeconds);
+        }
+    }
+
+    public void testEvictsOldestSharesFirst() throws IOException {
+        StorageManager storage = new StorageManager(blobStore, fileSharer, 100 * KB);
+        int oldest = share(40 * KB, (byte) 1);
+        int middle = share(40 * KB, (byte) 2);
+        assertEquals(80 * KB, blobStore.storedBytes());
+
+        // A reservation is backed by no bytes yet and evicts nothing
+        StorageManager.Reservation reservation = storage.reserve(30 * KB);
+        assertEquals(0, storage.evictions());
+        assertEquals(0, storage.reservedBytes());
+        assertNotNull(fileSharer.getShare(oldest));
+
+        reservation.grow(10 * KB);
+        assertEquals(0, storage.evictions());
+        reservation.grow(20 * KB);
+        assertEquals(30 * KB, storage.reservedBytes());
+        reservation.close();
+        assertEquals(1, storage.evictions());
+        assertNull(fileSharer.getShare(oldest));
+        assertNotNull(fileSharer.getShare(middle));
+        assertEquals(40 * KB, blobStore.storedBytes());
+        assertEquals(0, storage.reservedBytes());
+    }
+
+    public void testStoredAndWrittenBytesShareTheQuota() throws IOException {
+        StorageManager storage = new StorageManager(blobStore, fileSharer, 100 * KB);
+        int stored = share(40 * KB, (byte) 1);
+        try (StorageManager.Reservation first = storage.reserve(50 * KB);
+             StorageManager.Reservation second = storage.reserve(50 * KB)) {
+            first.grow(50 * KB);
+            // Never more than claimed
+            first.grow(10 * KB);
+            assertEquals(50 * KB, storage.reservedBytes());
+            assertEquals(0, storage.evictions());
+
+            // 40 + 50 + 20 would pass the quota
+            second.grow(20 * KB);
+            assertEquals(1, storage.evictions());
+            assertNull(fileSharer.getShare(stored));
+
+            // Written bytes that are now stored or discarded are handed back,
+            // while the claim still keeps other uploads out
+            first.release();
+            assertEquals(20 * KB, storage.reservedBytes());
+            try {
+                storage.reserve(10 * KB);
+                fail("Claims already fill the quota");
+            } catch (StorageManager.StorageFullException e) {
+                assertTrue(e.temporary);
+            }
+        }
+        assertEquals(0, storage.reservedBytes());
+        storage.reserve(100 * KB).close();
+    }
+
+    public void testTrackedWritesGrowTheReservation() throws IOException {
+        StorageManager storage = new StorageManager(blobStore, fileSharer, 100 * KB);
+        int stored = share(80 * KB, (byte) 1);
+        try (StorageManager.Reservation reservation = storage.reserve(30 * KB)) {
+            OutputStream out = reservation.track(OutputStream.nullOutputStream());
+            out.write(new byte[10 * KB]);
+            // Grown ahead of the writes as far as the claim allows
+            assertEquals(30 * KB, storage.reservedBytes());
+            assertNull(fileSharer.getShare(stored));
+        }
+        assertEquals(0, storage.reservedBytes());
+    }
+
+    public void testSharesBeingDownloadedAreNotEvicted() throws IOException {
+        StorageManager storage = new StorageManager(blobStore, fileSharer, 100 * KB);
+        int busy = share(80 * KB, (byte) 1);
+        Share reader = fileSharer.acquireReader(busy);
+        try {
+            storage.reserve(30 * KB).grow(30 * KB);
+            fail("Only a share in use could make room");
+        } catch (StorageManager.StorageFullException e) {
+            assertFalse(e.temporary);
+            assertTrue(e.retryAfterSeconds > 0);
+        } finally {
+            fileSharer.releaseReader(reader, false);
+        }
+        assertNotNull(fileSharer.getShare(busy));
+    }
+}
@@ -0,0 +1,125 @@
+package org.abhineshjha.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.utils.TimerWheel;
+
+import junit.framework.TestCase;
+
+public class TransferServerTest extends TestCase {
+    private File dir;
+    private TimerWheel timerWheel;
+    private FileSharer fileSharer;
+    private TransferServer server;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("transfer-test").toFile();
+        timerWheel = new TimerWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 64);
+        timerWheel.start();
+        BlobStore blobStore = new BlobStore(dir.getPath());
+        fileSharer = new FileSharer(blobStore, new ShareJournal(dir.getPath()), timerWheel, 0);
+        fileSharer.restore(dir.getPath());
+        server = new TransferServer(fileSharer, timerWheel, 0);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        server.stop();
+        timerWheel.stop();
+        fileSharer.close();
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private File file(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private Socket request(int port) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.getOutputStream().write((port + " " + fileSharer.getToken(port) + "\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+
+    // Reads the header up to its blank line
+    private static String header(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int previous = -1;
+        int b;
+        while ((b = in.read()) != -1 && !(b == '\n' && previous == '\n')) {
+            header.write(b);
+            previous = b;
+        }
+        return header.toString(StandardCharsets.UTF_8);
+    }
+
+    private void awaitUnshared(int port) throws InterruptedException {
+        for (int i = 0; i < 200 && fileSharer.getShare(port) != null; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void testSendsFileAndCountsDownload() throws IOException, InterruptedException {
+        File file = file("notes.txt", 100_000);
+        int port = fileSharer.offerFile(file.getPath());
+        try (Socket socket = request(port)) {
+            InputStream in = socket.getInputStream();
+            assertTrue(header(in).contains("Length: 100000\n"));
+            byte[] body = in.readAllBytes();
+            assertTrue(Arrays.equals(Files.readAllBytes(file.toPath()), body));
+        }
+        awaitUnshared(port);
+        assertNull(fileSharer.getShare(port));
+    }
+
+    public void testRejectsUnknownToken() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.getOutputStream().write("1 NOTATOKEN\n".getBytes(StandardCharsets.US_ASCII));
+            String reply = new String(socket.getInputStream().readAllBytes(), StandardCharsets.US_ASCII);
+            assertTrue(reply.startsWith("Error: "));
+        }
+    }
+
+    public void testFileShrunkMidSendEndsTheConnection() throws IOException, InterruptedException {
+        int size = 32 * 1024 * 1024;
+        File file = file("large.bin", size);
+        int port = fileSharer.offerFile(file.getPath());
+        long received;
+        try (Socket socket = request(port)) {
+            socket.setSoTimeout(10_000);
+            InputStream in = socket.getInputStream();
+            assertTrue(header(in).contains("Length: " + size + "\n"));
+            assertTrue(in.read() != -1);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(1024);
+            }
+            // The connection closes with the body short instead of stalling
+            received = 1 + in.transferTo(OutputStream.nullOutputStream());
+        }
+        assertTrue(received < size);
+        // A short body is no download: the share and its slot are still there
+        Thread.sleep(100);
+        Share share = fileSharer.acquireReader(port);
+        assertNotNull(share);
+        fileSharer.releaseReader(share, false);
+    }
+}
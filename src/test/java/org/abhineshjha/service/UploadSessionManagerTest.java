@@ -0,0 +1,86 @@
+package org.abhineshjha.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.abhineshjha.utils.TimerWheel;
+
+import junit.framework.TestCase;
+
+public class UploadSessionManagerTest extends TestCase {
+    private File dir;
+    private TimerWheel timerWheel;
+    private BlobStore blobStore;
+    private UploadSessionManager sessionManager;
+    private StorageManager storageManager;
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("session-test").toFile();
+        timerWheel = new TimerWheel("test-wheel", 1, TimeUnit.SECONDS, 64);
+        blobStore = new BlobStore(dir.getPath());
+        sessionManager = new UploadSessionManager(dir.getPath(), timerWheel, 60_000);
+        storageManager = new StorageManager(blobStore, null, 0);
+        content = new byte[300_000];
+        new Random(11).nextBytes(content);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private UploadSessionManager.Session create(String name) throws IOException {
+        return sessionManager.create(name, content.length, storageManager.reserve(content.length));
+    }
+
+    private void write(UploadSessionManager.Session session, int from, int to) throws IOException {
+        sessionManager.writeChunk(session, from, new ByteArrayInputStream(content, from, to - from));
+    }
+
+    private String commit(UploadSessionManager.Session session) throws IOException {
+        File file = sessionManager.complete(session);
+        return blobStore.commitFile(file, session.streamedDigest(), session.hashedBytes());
+    }
+
+    private String sha256() throws NoSuchAlgorithmException {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+
+    public void testInOrderChunksAreHashedAsTheyArrive() throws Exception {
+        UploadSessionManager.Session session = create("a.txt");
+        write(session, 0, 100_000);
+        write(session, 100_000, 200_000);
+        write(session, 200_000, content.length);
+        assertEquals(content.length, session.hashedBytes());
+        assertEquals(sha256(), commit(session));
+    }
+
+    public void testOutOfOrderAndOverlappingChunksStillHashCorrectly() throws Exception {
+        UploadSessionManager.Session gap = create("b.txt");
+        write(gap, 0, 100_000);
+        write(gap, 200_000, content.length);
+        write(gap, 100_000, 200_000);
+        // The middle chunk carried the digest on; only the tail is read back
+        assertEquals(200_000, gap.hashedBytes());
+        assertNotNull(gap.streamedDigest());
+        assertEquals(sha256(), commit(gap));
+
+        // A resent chunk: what was hashed may not be what the file holds
+        UploadSessionManager.Session retried = create("c.txt");
+        write(retried, 0, 150_000);
+        write(retried, 100_000, content.length);
+        assertNull(retried.streamedDigest());
+        assertEquals(sha256(), commit(retried));
+    }
+}
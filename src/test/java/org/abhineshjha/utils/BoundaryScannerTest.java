@@ -0,0 +1,62 @@
+package org.abhineshjha.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BoundaryScannerTest extends TestCase {
+
+    private static int naiveIndexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // A small alphabet so that partial and overlapping matches are common
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) "ab\r\n-".charAt(random.nextInt(5));
+        }
+        return data;
+    }
+
+    public void testMatchesNaiveSearch() {
+        Random random = new Random(42);
+        for (int round = 0; round < 2_000; round++) {
+            byte[] pattern = randomBytes(random, 1 + random.nextInt(12));
+            byte[] data = randomBytes(random, random.nextInt(300));
+            int from = data.length == 0 ? 0 : random.nextInt(data.length);
+            int to = from + random.nextInt(data.length - from + 1);
+            BoundaryScanner scanner = new BoundaryScanner(pattern);
+            assertEquals(naiveIndexOf(data, from, to, pattern), scanner.indexOf(data, from, to));
+        }
+    }
+
+    public void testFindsMatchAtEndOfData() {
+        byte[] pattern = "\r\n--boundary".getBytes(StandardCharsets.US_ASCII);
+        byte[] data = "content\r\n--boundary".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(7, new BoundaryScanner(pattern).indexOf(data, 0, data.length));
+        assertEquals(0, new BoundaryScanner(pattern).indexOf(pattern, 0, pattern.length));
+        assertEquals(-1, new BoundaryScanner(pattern).indexOf(data, 0, data.length - 1));
+    }
+
+    public void testPartialMatchAtChunkBorder() {
+        BoundaryScanner scanner = new BoundaryScanner("\r\n--boundary".getBytes(StandardCharsets.US_ASCII));
+        byte[] data = "abc\r\n--bou".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(3, scanner.partialMatch(data, 0, data.length));
+        // A CR that does not start the delimiter is not held back
+        data = "abc\r\n-x\r".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(7, scanner.partialMatch(data, 0, data.length));
+        data = "abcdef".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(6, scanner.partialMatch(data, 0, data.length));
+    }
+}
@@ -0,0 +1,26 @@
+package org.abhineshjha.utils;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testAcquireGivesUpWhenThePoolStaysEmpty() throws IOException {
+        BufferPool pool = new BufferPool(16, 2, 50);
+        byte[] first = pool.acquire();
+        byte[] second = pool.acquire();
+        assertEquals(0, pool.available());
+        try {
+            pool.acquire();
+            fail("pool is empty");
+        } catch (BufferPool.ExhaustedException expected) {
+        }
+
+        pool.release(first);
+        assertSame(first, pool.acquire()); // Reused, not reallocated
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2, pool.available());
+    }
+}
@@ -0,0 +1,16 @@
+package org.abhineshjha.utils;
+
+import junit.framework.TestCase;
+
+public class HttpConditionsTest extends TestCase {
+
+    public void testNoneMatchHits() {
+        assertTrue(HttpConditions.noneMatchHits("\"abc\"", "\"abc\""));
+        assertTrue(HttpConditions.noneMatchHits("\"x\", \"abc\"", "\"abc\""));
+        assertTrue(HttpConditions.noneMatchHits("W/\"abc\"", "\"abc\""));
+        assertTrue(HttpConditions.noneMatchHits("*", "\"abc\""));
+        assertFalse(HttpConditions.noneMatchHits(null, "\"abc\""));
+        assertFalse(HttpConditions.noneMatchHits("\"abc-gzip\"", "\"abc\""));
+        assertFalse(HttpConditions.noneMatchHits("abc", "\"abc\""));
+    }
+}
@@ -0,0 +1,22 @@
+package org.abhineshjha.utils;
+
+import junit.framework.TestCase;
+
+public class HttpEncodingsTest extends TestCase {
+
+    public void testAcceptsGzip() {
+        assertTrue(HttpEncodings.acceptsGzip("gzip, deflate, br"));
+        assertTrue(HttpEncodings.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(HttpEncodings.acceptsGzip("*"));
+        assertFalse(HttpEncodings.acceptsGzip(null));
+        assertFalse(HttpEncodings.acceptsGzip("identity"));
+        assertFalse(HttpEncodings.acceptsGzip("br"));
+    }
+
+    public void testZeroQualityRefuses() {
+        assertFalse(HttpEncodings.acceptsGzip("gzip;q=0"));
+        assertFalse(HttpEncodings.acceptsGzip("gzip;q=0, *"));
+        assertFalse(HttpEncodings.acceptsGzip("*;q=0"));
+        assertTrue(HttpEncodings.acceptsGzip("*;q=0, gzip"));
+    }
+}
@@ -0,0 +1,48 @@
+package org.abhineshjha.utils;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class HttpRangesTest extends TestCase {
+
+    public void testParsesClosedOpenAndSuffixRanges() {
+        List<long[]> ranges = HttpRanges.parse("bytes=0-99, 200-, -50", 1000);
+        assertEquals(3, ranges.size());
+        assertRange(0, 99, ranges.get(0));
+        assertRange(200, 999, ranges.get(1));
+        assertRange(950, 999, ranges.get(2));
+    }
+
+    public void testClampsLastByteToSize() {
+        assertRange(900, 999, HttpRanges.parse("bytes=900-5000", 1000).get(0));
+    }
+
+    public void testUnsatisfiableRangesGiveEmptyList() {
+        assertTrue(HttpRanges.parse("bytes=1000-2000", 1000).isEmpty());
+        assertTrue(HttpRanges.parse("bytes=5000-", 1000).isEmpty());
+    }
+
+    public void testMalformedHeaderIsIgnored() {
+        assertNull(HttpRanges.parse("items=0-1", 1000));
+        assertNull(HttpRanges.parse("bytes=5-1", 1000));
+        assertNull(HttpRanges.parse("bytes=a-b", 1000));
+        assertNull(HttpRanges.parse(null, 1000));
+    }
+
+    public void testDeliveredRangesMergeUntilComplete() {
+        RangeSet delivered = new RangeSet();
+        delivered.add(500, 1000);
+        assertFalse(delivered.coversAll(1000));
+        delivered.add(0, 200);
+        delivered.add(150, 500);
+        assertTrue(delivered.coversAll(1000));
+        assertEquals(1000, delivered.coveredBytes());
+        assertEquals(1, delivered.toList().size());
+    }
+
+    private static void assertRange(long first, long last, long[] range) {
+        assertEquals(first, range[0]);
+        assertEquals(last, range[1]);
+    }
+}
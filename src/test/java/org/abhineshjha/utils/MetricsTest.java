@@ -0,0 +1,50 @@
+package org.abhineshjha.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class MetricsTest extends TestCase {
+
+    public void testHistogramBucketsAreCumulative() {
+        Metrics metrics = new Metrics();
+        metrics.uploadLatency.record(TimeUnit.MICROSECONDS.toNanos(500));
+        metrics.uploadLatency.record(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.uploadLatency.record(TimeUnit.MINUTES.toNanos(30));
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE p2p_upload_duration_seconds histogram\n"));
+        assertTrue(text.contains("p2p_upload_duration_seconds_bucket{le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("p2p_upload_duration_seconds_bucket{le=\"0.025\"} 2\n"));
+        assertTrue(text.contains("p2p_upload_duration_seconds_bucket{le=\"600.0\"} 2\n"));
+        assertTrue(text.contains("p2p_upload_duration_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("p2p_upload_duration_seconds_count 3\n"));
+    }
+
+    public void testRejectionsAndGauges() {
+        Metrics metrics = new Metrics();
+        metrics.rejected(429);
+        metrics.rejected(429);
+        metrics.rejected(413);
+        metrics.gauge("p2p_disk_usage_bytes", "dir=\"blobs\"", "Bytes on disk", () -> 10);
+        metrics.gauge("p2p_disk_usage_bytes", "dir=\"incoming\"", "Bytes on disk", () -> 20);
+
+        String text = metrics.scrape();
+        assertEquals(2, metrics.rejections(429));
+        assertTrue(text.contains("p2p_rejected_requests_total{status=\"413\"} 1\n"
+                + "p2p_rejected_requests_total{status=\"429\"} 2\n"));
+        assertTrue(text.contains("# TYPE p2p_disk_usage_bytes gauge\n"
+                + "p2p_disk_usage_bytes{dir=\"blobs\"} 10\n"
+                + "p2p_disk_usage_bytes{dir=\"incoming\"} 20\n"));
+    }
+
+    public void testSecondsCounterReportsNanosInSeconds() {
+        Metrics metrics = new Metrics();
+        metrics.secondsCounter("p2p_virtual_thread_pinned_seconds_total", "Time pinned",
+                () -> TimeUnit.MILLISECONDS.toNanos(1500));
+
+        String text = metrics.scrape();
+        assertTrue(text.contains("# TYPE p2p_virtual_thread_pinned_seconds_total counter\n"
+                + "p2p_virtual_thread_pinned_seconds_total 1.5\n"));
+    }
+}
@@ -0,0 +1,136 @@
+package org.abhineshjha.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class MultiParserTest extends TestCase {
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private static byte[] body(byte[] content) {
+        return body(content, true);
+    }
+
+    private static byte[] body(byte[] content, boolean withField) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String field = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n";
+        String head = (withField ? field : "")
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"report.csv\"\r\n"
+                + "Content-Type: text/csv\r\n\r\n";
+        out.writeBytes(head.getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(content);
+        out.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    // Hands out at most a few bytes per read to exercise chunk borders
+    private static InputStream trickle(byte[] data, int maxRead) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, maxRead));
+            }
+        };
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            // Sprinkle CR/LF and dashes so partial delimiter matches occur
+            content[i] = (byte) "ab\r\n--c".charAt(i % 7);
+        }
+        return content;
+    }
+
+    public void testStreamsFilePartAcrossSmallReads() throws IOException {
+        byte[] content = content(200_000);
+        MultiParser parser = new MultiParser(trickle(body(content), 7), BOUNDARY);
+
+        MultiParser.Part field = parser.nextPart();
+        assertEquals("note", field.name);
+        assertNull(field.fileName);
+
+        MultiParser.Part file = parser.nextPart();
+        assertEquals("report.csv", file.fileName);
+        assertEquals("text/csv", file.contentType);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(content.length, parser.transferPart(out, Long.MAX_VALUE));
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+        assertNull(parser.nextPart());
+    }
+
+    public void testMatchesBufferedParser() throws IOException {
+        byte[] content = content(5_000);
+        byte[] body = body(content, false);
+        MultiParser.ParseResult buffered = new MultiParser(body, BOUNDARY).parse();
+
+        MultiParser parser = new MultiParser(new ByteArrayInputStream(body), BOUNDARY);
+        MultiParser.Part part = parser.nextPart();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.transferPart(out, Long.MAX_VALUE);
+
+        assertEquals(buffered.fileName, part.fileName);
+        assertEquals(buffered.contentType, part.contentType);
+        assertTrue(Arrays.equals(buffered.fileContent, out.toByteArray()));
+    }
+
+    public void testBufferedParseFindsDelimiterAtEnd() {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + "hello\r\n--" + BOUNDARY;
+        MultiParser.ParseResult result =
+                new MultiParser(body.getBytes(StandardCharsets.US_ASCII), BOUNDARY).parse();
+        assertEquals("a.txt", result.fileName);
+        assertEquals("text/plain", result.contentType);
+        assertEquals("hello", new String(result.fileContent, StandardCharsets.US_ASCII));
+    }
+
+    public void testRejectsOversizedPart() throws IOException {
+        MultiParser parser = new MultiParser(new ByteArrayInputStream(body(content(10_000))), BOUNDARY);
+        parser.nextPart();
+        parser.nextPart();
+        try {
+            parser.transferPart(OutputStream.nullOutputStream(), 1_000);
+            fail("Expected PartTooLargeException");
+        } catch (MultiParser.PartTooLargeException expected) {
+        }
+    }
+
+    public void testTruncatedBodyIsMalformed() throws IOException {
+        byte[] body = body(content(1_000));
+        byte[] truncated = Arrays.copyOf(body, body.length - 20);
+        MultiParser parser = new MultiParser(new ByteArrayInputStream(truncated), BOUNDARY);
+        parser.nextPart();
+        parser.nextPart();
+        try {
+            parser.transferPart(OutputStream.nullOutputStream(), Long.MAX_VALUE);
+            fail("Expected MultipartException");
+        } catch (MultiParser.MultipartException expected) {
+        }
+    }
+
+    public void testLongPreambleIsRefusedWithoutReadingTheBody() throws IOException {
+        byte[] junk = new byte[1024 * 1024];
+        Arrays.fill(junk, (byte) 'x');
+        ByteArrayInputStream in = new ByteArrayInputStream(junk);
+        MultiParser parser = new MultiParser(in, BOUNDARY);
+        try {
+            parser.nextPart();
+            fail("Expected MultipartException");
+        } catch (MultiParser.MultipartException expected) {
+        }
+        assertTrue(in.available() > junk.length / 2);
+    }
+}
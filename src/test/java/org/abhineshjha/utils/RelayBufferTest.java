@@ -0,0 +1,70 @@
+package org.abhineshjha.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class RelayBufferTest extends TestCase {
+
+    private static byte[] drain(RelayBuffer relay) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7_000]; // Reads that do not line up with the ring
+        int read;
+        while ((read = relay.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public void testPassesContentThroughSmallRing() throws Exception {
+        byte[] content = new byte[2 * 1024 * 1024 + 123];
+        new Random(9).nextBytes(content);
+        RelayBuffer relay = new RelayBuffer(64 * 1024, content.length, 10_000);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int off = 0; off < content.length; off += 50_000) {
+                    relay.write(content, off, Math.min(50_000, content.length - off));
+                }
+                relay.close();
+                assertTrue(relay.awaitDrained());
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        assertTrue(Arrays.equals(content, drain(relay)));
+        writer.join();
+        assertNull(failure.get());
+        assertEquals(content.length, relay.written());
+    }
+
+    public void testFailureReachesTheOtherSide() throws Exception {
+        RelayBuffer relay = new RelayBuffer(1024, -1, 10_000);
+        relay.write(new byte[1024], 0, 1024);
+        Thread reader = new Thread(() -> relay.fail("Recipient disconnected"));
+        reader.start();
+        try {
+            relay.write(new byte[10], 0, 10); // Ring full: waits until the failure
+            fail("write after the reader failed");
+        } catch (IOException expected) {
+            assertEquals("Recipient disconnected", expected.getMessage());
+        }
+        reader.join();
+        assertFalse(relay.attachReader());
+    }
+
+    public void testIdleReaderTimesOut() {
+        RelayBuffer relay = new RelayBuffer(1024, -1, 50);
+        try {
+            relay.read(new byte[10], 0, 10);
+            fail("read without an uploader");
+        } catch (IOException expected) {
+            assertEquals("No upload arrived", expected.getMessage());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.abhineshjha.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class TimerWheelTest extends TestCase {
+    private TimerWheel wheel;
+
+    @Override
+    protected void setUp() {
+        // Tiny wheel so short delays already take several laps
+        wheel = new TimerWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 4);
+        wheel.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        wheel.stop();
+    }
+
+    public void testFiresAfterDelayAcrossLaps() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            firedAt.set(System.nanoTime());
+            fired.countDown();
+        }, 150, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start) >= 150);
+        assertEquals(0, wheel.pendingTimeouts());
+    }
+
+    public void testCancelledTimeoutDoesNotRun() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        TimerWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), 50, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertTrue(timeout.isCancelled());
+    }
+
+    public void testZeroDelayWorkRunsOnStop() {
+        AtomicBoolean ran = new AtomicBoolean();
+        TimerWheel slow = new TimerWheel("slow-wheel", 1, TimeUnit.HOURS, 8);
+        slow.start();
+        slow.schedule(() -> ran.set(true), 0, TimeUnit.MILLISECONDS);
+        slow.stop();
+        assertTrue(ran.get());
+    }
+}
@@ -0,0 +1,78 @@
+package org.abhineshjha.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class TokenBucketTest extends TestCase {
+
+    public void testBurstThenReject() {
+        // Refills one permit per hour, so nothing comes back during the test
+        TokenBucket bucket = new TokenBucket(1 / 3600d, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.tryAcquire(1));
+        }
+        long wait = bucket.tryAcquire(1);
+        assertTrue(wait > TimeUnit.MINUTES.toNanos(59));
+        assertFalse(bucket.isFull());
+    }
+
+    public void testConcurrentCallersNeverExceedBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1 / 3600d, 100);
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.tryAcquire(1) == 0) {
+                        granted.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, granted.get());
+    }
+
+    public void testReservePacesBytes() {
+        // 1000 bytes/s with a 1000 byte burst: the first second is free,
+        // the next 500 bytes have to wait about half a second
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        assertEquals(0, bucket.reserve(1000));
+        long wait = bucket.reserve(500);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    public void testHeldBucketIsNotIdle() throws IOException {
+        TokenBucket bucket = new TokenBucket(1000, 1000);
+        assertTrue(bucket.isIdle());
+        bucket.hold();
+        OutputStream out = new ThrottledOutputStream(OutputStream.nullOutputStream(), bucket, null);
+        // Full, but a stream still paces itself by it
+        assertTrue(bucket.isFull());
+        assertFalse(bucket.isIdle());
+        out.close();
+        out.close();
+        assertTrue(bucket.isIdle());
+        bucket.hold();
+        assertFalse(bucket.isIdle());
+    }
+}
@@ -8,6 +8,14 @@ interface FileDownloadProps {
   isDownloading: boolean;
 }
 
+// Access codes are 12 Crockford base32 characters (digits and letters)
+const TOKEN_LENGTH = 12;
+
+// Pasted codes may carry spaces or dashes; only letters and digits count
+function normalizeToken(value: string): string {
+  return value.replace(/[^0-9a-zA-Z]/g, '').toUpperCase().slice(0, TOKEN_LENGTH);
+}
+
 export default function FileDownload({ onDownload, isDownloading }: FileDownloadProps) {
   const [accessToken, setAccessToken] = useState('');
   const [error, setError] = useState('');
@@ -17,7 +25,11 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
     setError('');
     
     if (!accessToken.trim()) {
-      setError('Please enter the access PIN');
+      setError('Please enter the access code');
+      return;
+    }
+    if (accessToken.length !== TOKEN_LENGTH) {
+      setError(`The access code has ${TOKEN_LENGTH} letters and digits`);
       return;
     }
     
@@ -25,7 +37,7 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
       // Use a dummy port, since only PIN is used now
       await onDownload(0, accessToken.trim());
     } catch (err) {
-      setError('Failed to download the file. Please check the PIN and try again.');
+      setError('Failed to download the file. Please check the access code and try again.');
     }
   };
   
@@ -34,24 +46,27 @@ export default function FileDownload({ onDownload, isDownloading }: FileDownload
       <div className="bg-blue-50 p-4 rounded-lg border border-blue-100">
         <h3 className="text-lg font-medium text-blue-800 mb-2">Receive a File</h3>
         <p className="text-sm text-blue-600 mb-0">
-          Enter the access PIN shared with you to download the file.
+          Enter the access code shared with you to download the file.
         </p>
       </div>
       
       <form onSubmit={handleSubmit} className="space-y-4">
         <div>
           <label htmlFor="accessToken" className="block text-sm font-medium text-gray-700 mb-1">
-            Access PIN
+            Access code
           </label>
           <input
             type="text"
             id="accessToken"
             value={accessToken}
-            onChange={(e) => setAccessToken(e.target.value)}
-            placeholder="Enter the 6-digit access PIN"
-            className="input-field font-mono tracking-wider"
+            onChange={(e) => setAccessToken(normalizeToken(e.target.value))}
+            placeholder="Enter the 12-character access code"
+            className="input-field font-mono tracking-wider uppercase"
             disabled={isDownloading}
-            maxLength={6}
+            maxLength={TOKEN_LENGTH}
+            pattern="[0-9A-Za-z]{12}"
+            autoComplete="off"
+            spellCheck={false}
             required
           />
         </div>
@@ -22,11 +22,11 @@ export default function InviteCode({ port, token }: InviteCodeProps) {
     <div className="mt-6 p-4 bg-green-50 border border-green-200 rounded-lg">
       <h3 className="text-lg font-medium text-green-800">File Ready to Share!</h3>
       <p className="text-sm text-green-600 mb-3">
-        Share this access PIN with anyone you want to share the file with:
+        Share this access code with anyone you want to share the file with:
       </p>
       <div className="space-y-3">
         <div>
-          <label className="text-xs font-medium text-gray-600 mb-1 block">Access PIN</label>
+          <label className="text-xs font-medium text-gray-600 mb-1 block">Access code</label>
           <div className="flex items-center">
             <div className="flex-1 bg-white p-3 rounded-l-md border border-r-0 border-gray-300 font-mono text-lg tracking-wider">
               {token}
@@ -34,7 +34,7 @@ export default function InviteCode({ port, token }: InviteCodeProps) {
             <button
               onClick={copyTokenToClipboard}
               className="p-3 bg-green-500 hover:bg-green-600 text-white rounded-r-md transition-colors"
-              aria-label="Copy access PIN"
+              aria-label="Copy access code"
             >
               {copiedToken ? <FiCheck className="w-5 h-5" /> : <FiCopy className="w-5 h-5" />}
             </button>
@@ -42,7 +42,7 @@ export default function InviteCode({ port, token }: InviteCodeProps) {
         </div>
       </div>
       <p className="mt-3 text-xs text-gray-500">
-        The access PIN is required to download the file. This adds extra security to your file sharing.
+        The access code is required to download the file. This adds extra security to your file sharing.
       </p>
     </div>
   );